@@ -0,0 +1,103 @@
+package com.pfnet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * AgentConfig - Typed access to the PFNET settings in config.properties.
+ *
+ * Values in the shipped file may carry a trailing comment ("3000 # Milliseconds"), which plain
+ * java.util.Properties would keep as part of the value; it is stripped here. Missing or malformed
+ * values fall back to the default passed by the caller.
+ */
+public class AgentConfig {
+
+    public static final String DEFAULT_FILE = "config.properties";
+
+    private final Properties properties;
+
+    public AgentConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Loads settings from a properties file.
+     *
+     * @param file The file to read.
+     * @return The loaded configuration.
+     * @throws IOException If the file cannot be read.
+     */
+    public static AgentConfig load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return new AgentConfig(properties);
+    }
+
+    /**
+     * Loads config.properties from the working directory, or returns an empty configuration (all
+     * defaults) if there is none.
+     */
+    public static AgentConfig loadDefault() {
+        Path file = Paths.get(DEFAULT_FILE);
+        if (Files.isReadable(file)) {
+            try {
+                return load(file);
+            } catch (IOException e) {
+                System.err.println("[WARN] Could not read " + file + ", using defaults: " + e.getMessage());
+            }
+        }
+        return new AgentConfig(new Properties());
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        int comment = value.indexOf('#');
+        value = (comment >= 0 ? value.substring(0, comment) : value).trim();
+        return value.isEmpty() ? defaultValue : value;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("[WARN] Invalid number for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, getLong(key, defaultValue)));
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[WARN] Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.pfnet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncLogger - A logger that hands lines to a background writer through a pre-allocated ring buffer.
+ *
+ * Logging threads check the level first, so a disabled message costs one comparison and no string
+ * is built. An enabled message is formatted on the calling thread, from "{}" placeholders, and put
+ * into the next slot of the ring: claiming a slot is one atomic increment and nothing is allocated
+ * beyond the message itself. A single writer thread drains the ring in batches into a buffered
+ * writer and flushes once per batch, so callers never wait for I/O or for each other. Only when
+ * the ring is full does a caller wait, yielding until the writer has made room. An idle writer
+ * parks, and the caller that publishes the next line unparks it.
+ *
+ * The level comes from logging.level and the output from logging.file; an empty file name writes
+ * to standard output.
+ */
+public class AsyncLogger implements AutoCloseable {
+
+    /**
+     * Severity of a message; a logger set to a level writes that level and the ones above it.
+     */
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    private static final int RING_SIZE = 8192;         // Slots, a power of two
+    private static final int WRITE_BATCH = 512;        // Lines written per flush, at most
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final Level threshold;
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong tail;  // Next sequence to claim
+    private long head;              // Next sequence to write, touched only by the writer
+    private long stampMillis = -1;  // Time of the last formatted timestamp, touched only by the writer
+    private String stamp;
+    private final Writer out;
+    private final boolean ownsOutput; // False for standard output, which stays open
+    private final Thread writer;
+    private volatile boolean writerParked; // Set while the writer is about to park or parked
+    private volatile boolean closed;
+
+    /**
+     * @param threshold  The lowest severity written.
+     * @param out        Receives the formatted lines.
+     * @param ownsOutput Whether closing the logger closes the output.
+     */
+    AsyncLogger(Level threshold, Writer out, boolean ownsOutput) {
+        this.threshold = threshold;
+        this.ring = new Slot[RING_SIZE];
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Slot(i);
+        }
+        this.mask = RING_SIZE - 1;
+        this.tail = new AtomicLong();
+        this.out = out;
+        this.ownsOutput = ownsOutput;
+        this.writer = new Thread(this::runWriter, "pfnet-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Creates a logger from logging.level and logging.file, appending to the file. Falls back to
+     * standard output if the file cannot be opened.
+     */
+    static AsyncLogger fromConfig(AgentConfig config) {
+        Level level = config.getEnum("logging.level", Level.class, Level.INFO);
+        String file = config.getString("logging.file", "");
+        Writer out = null;
+        if (!file.isEmpty()) {
+            try {
+                out = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("[WARN] Cannot open log file " + file + ", logging to standard output: " + e.getMessage());
+            }
+        }
+        if (out == null) {
+            return new AsyncLogger(level, new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)), false);
+        }
+        return new AsyncLogger(level, out, true);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) <= 0;
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    public void error(String pattern, Object arg) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, format(pattern, arg, null, null, 1));
+        }
+    }
+
+    public void error(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, format(pattern, arg1, arg2, null, 2));
+        }
+    }
+
+    public void error(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, format(pattern, arg1, arg2, arg3, 3));
+        }
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public void warn(String pattern, Object arg) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, format(pattern, arg, null, null, 1));
+        }
+    }
+
+    public void warn(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, format(pattern, arg1, arg2, null, 2));
+        }
+    }
+
+    public void warn(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, format(pattern, arg1, arg2, arg3, 3));
+        }
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public void info(String pattern, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, format(pattern, arg, null, null, 1));
+        }
+    }
+
+    public void info(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, format(pattern, arg1, arg2, null, 2));
+        }
+    }
+
+    public void info(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, format(pattern, arg1, arg2, arg3, 3));
+        }
+    }
+
+    /**
+     * Queues a finished message for writing if its level is enabled.
+     */
+    public void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (closed) {
+            writeDirectly(level, message);
+            return;
+        }
+        long sequence = tail.getAndIncrement();
+        Slot slot = ring[(int) sequence & mask];
+        while (slot.sequence != sequence) {
+            if (!writer.isAlive()) {
+                writeDirectly(level, message); // Closed while this caller waited for room
+                return;
+            }
+            Thread.yield(); // Ring full: the slot still holds a line from the previous lap
+        }
+        slot.timestamp = System.currentTimeMillis();
+        slot.level = level;
+        slot.message = message;
+        slot.sequence = sequence + 1; // Publishes the line to the writer
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        if (closed) {
+            // The writer may have seen every claimed line written and stopped just before this
+            // one was claimed; once it has stopped, nothing else will take the line.
+            awaitWriter();
+            if (slot.sequence == sequence + 1) {
+                writeDirectly(level, message);
+            }
+        }
+    }
+
+    private static void writeDirectly(Level level, String message) {
+        (level == Level.ERROR || level == Level.WARN ? System.err : System.out).println("[" + level + "] " + message);
+    }
+
+    private static String format(String pattern, Object arg1, Object arg2, Object arg3, int count) {
+        StringBuilder builder = new StringBuilder(pattern.length() + 64);
+        int from = 0;
+        for (int i = 0; i < count; i++) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            builder.append(pattern, from, at).append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+            from = at + 2;
+        }
+        return builder.append(pattern, from, pattern.length()).toString();
+    }
+
+    private void runWriter() {
+        while (true) {
+            boolean stopping = closed;
+            int written = drain();
+            if (written == 0) {
+                if (stopping && head == tail.get()) {
+                    return;
+                }
+                // Announce the park before the last look, so a line published in between either
+                // is seen here or finds the flag set and unparks the writer
+                writerParked = true;
+                if (!closed && ring[(int) head & mask].sequence != head + 1) {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    /**
+     * Writes up to {@value #WRITE_BATCH} published lines and flushes them together.
+     *
+     * @return The number of lines written.
+     */
+    private int drain() {
+        int written = 0;
+        StringBuilder line = new StringBuilder(128);
+        try {
+            while (written < WRITE_BATCH) {
+                Slot slot = ring[(int) head & mask];
+                if (slot.sequence != head + 1) {
+                    break; // Not claimed yet, or claimed but still being filled
+                }
+                line.setLength(0);
+                line.append(timestamp(slot.timestamp)).append(" [").append(slot.level).append("] ")
+                        .append(slot.message).append(System.lineSeparator());
+                slot.message = null;
+                slot.sequence = head + RING_SIZE; // Free for the next lap
+                head++;
+                out.append(line);
+                written++;
+            }
+            if (written > 0) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("[ERROR] Log write failed: " + e.getMessage());
+        }
+        return written;
+    }
+
+    private String timestamp(long millis) {
+        if (millis != stampMillis) {
+            stampMillis = millis;
+            stamp = Instant.ofEpochMilli(millis).toString();
+        }
+        return stamp;
+    }
+
+    /**
+     * Writes the lines still in the ring and closes the output. Messages logged afterwards go
+     * straight to the console.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        awaitWriter();
+        try {
+            if (ownsOutput) {
+                out.close();
+            } else {
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("[ERROR] Closing log failed: " + e.getMessage());
+        }
+    }
+
+    private void awaitWriter() {
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One line in the ring. Its sequence says whose turn it is: equal to a claimed sequence, the
+     * slot is free for that producer; one above it, the line is ready for the writer.
+     */
+    private static final class Slot {
+        private volatile long sequence;
+        private long timestamp;
+        private Level level;
+        private String message;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.pfnet;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * AuthenticationService-Handles user authentication and session management for the PFNET system.
@@ -14,8 +15,9 @@ public class AuthenticationService {
     private final Map<String, String> activeSessions; // Maps session tokens to usernames
 
     public AuthenticationService() {
-        this.userCredentials = new HashMap<>();
-        this.activeSessions = new HashMap<>();
+        // Concurrent maps: sessions are validated on every task submission, from any producer thread
+        this.userCredentials = new ConcurrentHashMap<>();
+        this.activeSessions = new ConcurrentHashMap<>();
     }
 
     /**
@@ -26,13 +28,12 @@ public class AuthenticationService {
      * @return True if the user was successfully registered; false if the username already exists.
      */
     public boolean registerUser(String username, String password) {
-        if (userCredentials.containsKey(username)) {
+        String hashedPassword = hashPassword(password);
+        if (userCredentials.putIfAbsent(username, hashedPassword) != null) {
             System.err.println("[ERROR] Username already exists: " + username);
             return false;
         }
 
-        String hashedPassword = hashPassword(password);
-        userCredentials.put(username, hashedPassword);
         System.out.println("[INFO] User registered successfully: " + username);
         return true;
     }
@@ -0,0 +1,166 @@
+package com.pfnet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CapacityContentionBenchmark - Measures capacity bookkeeping throughput under many dispatcher threads.
+ *
+ * Each worker behaves like a dispatcher: it reads the available capacity of several nodes, then reserves
+ * and releases one unit on a random node. The lock-free MachineNode is compared against a monitor-based
+ * node equivalent to the previous implementation, which also kept its index entry up to date while
+ * holding its lock.
+ */
+public class CapacityContentionBenchmark {
+
+    private static final int NODE_COUNT = 8;
+    private static final int NODE_CAPACITY = 1_000;
+    private static final int READS_PER_RESERVATION = 8;
+    private static final long RUN_MILLIS = 1_000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    /**
+     * Common view of the two node implementations under test.
+     */
+    private interface CapacityNode {
+        int getAvailableCapacity();
+
+        boolean tryReserve(PFNETAgent.ResourceVector demand);
+
+        void release(PFNETAgent.ResourceVector demand);
+    }
+
+    /**
+     * The synchronized bookkeeping MachineNode used before the switch to CAS.
+     */
+    private static final class MonitorNode implements CapacityNode {
+        private final CapacityIndex index;
+        private final PFNETAgent.MachineNode indexEntry;
+        private int availableCapacity;
+
+        MonitorNode(CapacityIndex index, PFNETAgent.MachineNode indexEntry, int capacity) {
+            this.index = index;
+            this.indexEntry = indexEntry;
+            this.availableCapacity = capacity;
+            index.add(indexEntry, capacity);
+        }
+
+        @Override
+        public synchronized int getAvailableCapacity() {
+            return availableCapacity;
+        }
+
+        @Override
+        public synchronized boolean tryReserve(PFNETAgent.ResourceVector demand) {
+            if (availableCapacity >= demand.getCpu()) {
+                index.update(indexEntry, availableCapacity, availableCapacity - demand.getCpu());
+                availableCapacity -= demand.getCpu();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized void release(PFNETAgent.ResourceVector demand) {
+            index.update(indexEntry, availableCapacity, availableCapacity + demand.getCpu());
+            availableCapacity += demand.getCpu();
+        }
+    }
+
+    /**
+     * Adapts a registered lock-free MachineNode.
+     */
+    private static final class AtomicNode implements CapacityNode {
+        private final PFNETAgent.MachineNode node;
+
+        AtomicNode(PFNETAgent.MachineNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public int getAvailableCapacity() {
+            return node.getAvailableCapacity();
+        }
+
+        @Override
+        public boolean tryReserve(PFNETAgent.ResourceVector demand) {
+            return node.tryReserve(demand);
+        }
+
+        @Override
+        public void release(PFNETAgent.ResourceVector demand) {
+            node.release(demand);
+        }
+    }
+
+    /**
+     * Runs the dispatcher workload on the given nodes and returns operations per second.
+     */
+    private static double run(CapacityNode[] nodes, int threads) throws InterruptedException {
+        PFNETAgent.ResourceVector unit = PFNETAgent.ResourceVector.ofCpu(1);
+        LongAdder operations = new LongAdder();
+        CountDownLatch startGate = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long sink = 0;
+                long done = 0;
+                try {
+                    startGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                while (System.nanoTime() < deadline[0]) {
+                    for (int r = 0; r < READS_PER_RESERVATION; r++) {
+                        sink += nodes[random.nextInt(nodes.length)].getAvailableCapacity();
+                    }
+                    CapacityNode node = nodes[random.nextInt(nodes.length)];
+                    if (node.tryReserve(unit)) {
+                        node.release(unit);
+                    }
+                    done++;
+                }
+                operations.add(done + (sink == Long.MIN_VALUE ? 1 : 0));
+            });
+            workers[t].start();
+        }
+
+        deadline[0] = System.nanoTime() + RUN_MILLIS * 1_000_000L;
+        startGate.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() * 1000.0 / RUN_MILLIS;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        PFNETAgent agent = new PFNETAgent();
+        CapacityNode[] atomicNodes = new CapacityNode[NODE_COUNT];
+        CapacityNode[] monitorNodes = new CapacityNode[NODE_COUNT];
+        CapacityIndex monitorIndex = new CapacityIndex();
+
+        for (int i = 0; i < NODE_COUNT; i++) {
+            agent.registerNode("Node" + i, NODE_CAPACITY);
+            atomicNodes[i] = new AtomicNode(agent.getNode("Node" + i));
+            PFNETAgent.MachineNode indexEntry = new PFNETAgent.MachineNode(agent, "Baseline" + i, NODE_CAPACITY);
+            monitorNodes[i] = new MonitorNode(monitorIndex, indexEntry, NODE_CAPACITY);
+        }
+
+        // Warm up both paths before measuring
+        run(monitorNodes, 4);
+        run(atomicNodes, 4);
+
+        System.out.println();
+        System.out.println("threads   synchronized (ops/s)   lock-free (ops/s)   speedup");
+        for (int threads : THREAD_COUNTS) {
+            double monitor = run(monitorNodes, threads);
+            double atomic = run(atomicNodes, threads);
+            System.out.printf("%7d   %20.0f   %17.0f   %6.2fx%n", threads, monitor, atomic, atomic / monitor);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.pfnet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * CapacityIndex - An ordered index of machine nodes keyed by their available capacity.
+ *
+ * Each node is stored under a single key packing its available capacity in the high 32 bits and its
+ * registration ordinal in the low 32 bits, so nodes with equal capacity stay distinct and a best-fit
+ * lookup becomes a ceiling query on the skip list.
+ */
+class CapacityIndex {
+
+    private final ConcurrentSkipListMap<Long, PFNETAgent.MachineNode> byCapacity;
+
+    CapacityIndex() {
+        this.byCapacity = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Adds a node under its current available capacity.
+     */
+    void add(PFNETAgent.MachineNode node, int capacity) {
+        byCapacity.put(key(capacity, node.getOrdinal()), node);
+    }
+
+    /**
+     * Removes a node that is indexed under the given capacity.
+     */
+    void remove(PFNETAgent.MachineNode node, int capacity) {
+        byCapacity.remove(key(capacity, node.getOrdinal()), node);
+    }
+
+    /**
+     * Moves a node from its previous capacity key to its current one.
+     */
+    void update(PFNETAgent.MachineNode node, int previous, int current) {
+        if (previous != current) {
+            remove(node, previous);
+            add(node, current);
+        }
+    }
+
+    /**
+     * Returns the nodes with at least the requested capacity, smallest capacity first.
+     *
+     * @param requiredCapacity The capacity the caller needs.
+     * @return A live view, in best-fit order.
+     */
+    Iterable<PFNETAgent.MachineNode> atLeast(int requiredCapacity) {
+        return byCapacity.tailMap(key(requiredCapacity, 0)).values();
+    }
+
+    /**
+     * Returns the nodes with less than the given capacity, largest capacity first.
+     *
+     * @param capacity The capacity the nodes fall short of.
+     * @return A live view, closest to the given capacity first.
+     */
+    Iterable<PFNETAgent.MachineNode> below(int capacity) {
+        return byCapacity.headMap(key(capacity, 0)).descendingMap().values();
+    }
+
+    /**
+     * Returns the node whose available capacity is the smallest one that still fits the request.
+     *
+     * @param requiredCapacity The capacity the caller needs.
+     * @return The best-fit node, or null if no node currently has enough capacity.
+     */
+    PFNETAgent.MachineNode ceiling(int requiredCapacity) {
+        Map.Entry<Long, PFNETAgent.MachineNode> entry = byCapacity.ceilingEntry(key(requiredCapacity, 0));
+        return entry != null ? entry.getValue() : null;
+    }
+
+    int size() {
+        return byCapacity.size();
+    }
+
+    private static long key(int capacity, int ordinal) {
+        return ((long) capacity << 32) | (ordinal & 0xFFFFFFFFL);
+    }
+}
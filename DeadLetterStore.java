@@ -0,0 +1,520 @@
+package com.pfnet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * DeadLetterStore - Keeps tasks the agent gave up on, on disk, so they can be replayed later.
+ *
+ * Entries are appended as one line each to numbered segment files in a directory, which is only
+ * created when the first entry is written, so an agent that never discards a task leaves nothing on
+ * disk. Agents running side by side should each be given their own deadLetter.directory. The store is
+ * bounded: once it holds more than the configured number of entries, the oldest segment is deleted.
+ * All file access runs on a dedicated single-threaded subsystem, so recording a task never blocks a
+ * dispatcher and appends and replays never interleave.
+ *
+ * Replay streams each segment once, hands the selected entries to the agent as new tasks and
+ * rewrites the segment with the remaining ones, so memory use does not depend on the store size.
+ */
+public class DeadLetterStore {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final int FIELD_COUNT = 15; // Fields per line, as written by Entry.encode
+    private static final char LABEL_SEPARATOR = ',';
+    private static final char LABEL_ASSIGNMENT = '=';
+
+    private final Path directory;
+    private final int maxEntries;
+    private final int segmentEntries;
+    private final SubsystemExecutor io;
+    private final Deque<Segment> segments; // Oldest first; only touched on the io thread
+    private BufferedWriter writer;         // Appends to the newest segment
+    private long totalEntries;
+    private long nextSegmentNumber = 1;
+    private boolean open;
+
+    /**
+     * @param directory      Directory holding the segment files; created on the first write if missing.
+     * @param maxEntries     Number of entries above which the oldest segment is dropped.
+     * @param segmentEntries Entries per segment file.
+     */
+    public DeadLetterStore(Path directory, int maxEntries, int segmentEntries) {
+        if (segmentEntries < 1 || maxEntries < segmentEntries) {
+            throw new IllegalArgumentException("Invalid dead-letter bounds: " + maxEntries + " entries, " + segmentEntries + " per segment");
+        }
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.segmentEntries = segmentEntries;
+        this.io = SubsystemExecutor.create("dead-letter", PFNETAgent.ExecutionMode.PLATFORM, 1);
+        this.segments = new ArrayDeque<>();
+        io.execute(this::openSegments);
+    }
+
+    /**
+     * Creates a store from the deadLetter.* settings.
+     */
+    static DeadLetterStore fromConfig(AgentConfig config) {
+        return new DeadLetterStore(Paths.get(config.getString("deadLetter.directory", "deadletter")),
+                config.getInt("deadLetter.maxEntries", 100_000),
+                config.getInt("deadLetter.segmentEntries", 10_000));
+    }
+
+    /**
+     * Records a discarded task. Returns immediately; the entry is written in the background.
+     *
+     * @param task   The discarded task.
+     * @param reason Why it was discarded.
+     */
+    public void record(PFNETAgent.Task task, String reason) {
+        Entry entry = new Entry(System.currentTimeMillis(), reason, task.getId(), task.getResources(),
+                task.getExecutionTime(), task.getPriority(), task.getRetryCount(), task.getOwner(),
+                task.getRequiredLabels(), task.getAvoidedLabels(), task.getSpreadGroup(), task.getDeadline(), task.getType());
+        io.execute(() -> append(entry));
+    }
+
+    /**
+     * Removes the entries matching the selector and passes each of them, as a fresh task with no
+     * retries used, to the sink. Entries that are not selected stay in the store.
+     *
+     * @param selector Chooses the entries to replay.
+     * @param sink     Receives the replayed tasks, typically the agent's queue.
+     * @return A future completing with the number of replayed tasks.
+     */
+    public CompletableFuture<Integer> replay(Predicate<Entry> selector, Consumer<PFNETAgent.Task> sink) {
+        return io.submit(() -> replaySegments(selector, sink));
+    }
+
+    /**
+     * @return A future completing with the number of entries currently stored.
+     */
+    public CompletableFuture<Long> size() {
+        return io.submit(() -> totalEntries);
+    }
+
+    /**
+     * Flushes pending writes and closes the store.
+     */
+    public void close() {
+        io.execute(this::closeWriter);
+        io.shutdown();
+    }
+
+    private void openSegments() {
+        try {
+            if (!Files.isDirectory(directory)) {
+                open = true; // Nothing stored yet; startSegment() creates the directory
+                return;
+            }
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            files.sort(null); // Zero-padded numbers sort in creation order
+            for (Path file : files) {
+                long lines = countLines(file);
+                segments.addLast(new Segment(file, lines));
+                totalEntries += lines;
+                nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber(file) + 1);
+            }
+            open = true;
+            if (totalEntries > 0) {
+                System.out.println("[INFO] Dead-letter store opened with " + totalEntries + " entries in " + directory);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[ERROR] Dead-letter store unavailable at " + directory + ": " + e);
+        }
+    }
+
+    private void append(Entry entry) {
+        if (!open) {
+            System.err.println("[ERROR] Dead letter lost, store unavailable: " + entry);
+            return;
+        }
+        try {
+            Segment active = segments.peekLast();
+            if (active == null || active.entries >= segmentEntries) {
+                active = startSegment();
+            } else if (writer == null) {
+                writer = Files.newBufferedWriter(active.file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            }
+            writer.write(entry.encode());
+            writer.newLine();
+            writer.flush();
+            active.entries++;
+            totalEntries++;
+            enforceBound();
+        } catch (IOException e) {
+            System.err.println("[ERROR] Failed to write dead letter " + entry + ": " + e.getMessage());
+        }
+    }
+
+    private Segment startSegment() throws IOException {
+        closeWriter();
+        Files.createDirectories(directory);
+        Path file = directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, nextSegmentNumber++, SEGMENT_SUFFIX));
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        Segment segment = new Segment(file, 0);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Deletes the oldest segments, never the one being written, while the store is over its bound.
+     */
+    private void enforceBound() throws IOException {
+        while (totalEntries > maxEntries && segments.size() > 1) {
+            Segment oldest = segments.removeFirst();
+            Files.deleteIfExists(oldest.file);
+            totalEntries -= oldest.entries;
+            System.err.println("[WARN] Dead-letter store full, dropped " + oldest.entries + " oldest entries");
+        }
+    }
+
+    private int replaySegments(Predicate<Entry> selector, Consumer<PFNETAgent.Task> sink) throws IOException {
+        if (!open) {
+            throw new IOException("Dead-letter store unavailable at " + directory);
+        }
+        closeWriter(); // The newest segment may be rewritten; append() reopens it
+        int replayed = 0;
+        for (Segment segment : new ArrayList<>(segments)) {
+            Path rewritten = segment.file.resolveSibling(segment.file.getFileName() + ".tmp");
+            long kept = 0;
+            try (BufferedReader reader = Files.newBufferedReader(segment.file, StandardCharsets.UTF_8);
+                 BufferedWriter out = Files.newBufferedWriter(rewritten, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = Entry.decode(line);
+                    if (entry != null && selector.test(entry)) {
+                        sink.accept(entry.toTask());
+                        replayed++;
+                    } else {
+                        out.write(line);
+                        out.newLine();
+                        kept++;
+                    }
+                }
+            }
+            if (kept == segment.entries) {
+                Files.delete(rewritten);
+                continue;
+            }
+            totalEntries -= segment.entries - kept;
+            segment.entries = kept;
+            if (kept == 0 && segment != segments.peekLast()) {
+                Files.delete(rewritten);
+                Files.delete(segment.file);
+                segments.remove(segment);
+            } else {
+                Files.move(rewritten, segment.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        return replayed;
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("[ERROR] Failed to close dead-letter segment: " + e.getMessage());
+        }
+        writer = null;
+    }
+
+    private static long countLines(Path file) throws IOException {
+        long lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            while (reader.readLine() != null) {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private long entries;
+
+        Segment(Path file, long entries) {
+            this.file = file;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * A discarded task as stored on disk.
+     */
+    public static final class Entry {
+        private final long failedAt;
+        private final String reason;
+        private final String taskId;
+        private final PFNETAgent.ResourceVector resources;
+        private final int executionTime;
+        private final PFNETAgent.Priority priority;
+        private final int retryCount;
+        private final String owner;
+        private final Map<String, String> requiredLabels;
+        private final Map<String, String> avoidedLabels;
+        private final String spreadGroup;
+        private final long deadline;
+        private final String type;
+
+        Entry(long failedAt, String reason, String taskId, PFNETAgent.ResourceVector resources,
+              int executionTime, PFNETAgent.Priority priority, int retryCount, String owner,
+              Map<String, String> requiredLabels, Map<String, String> avoidedLabels, String spreadGroup,
+              long deadline, String type) {
+            this.failedAt = failedAt;
+            this.reason = reason;
+            this.taskId = taskId;
+            this.resources = resources;
+            this.executionTime = executionTime;
+            this.priority = priority;
+            this.retryCount = retryCount;
+            this.owner = owner;
+            this.requiredLabels = requiredLabels;
+            this.avoidedLabels = avoidedLabels;
+            this.spreadGroup = spreadGroup;
+            this.deadline = deadline;
+            this.type = type;
+        }
+
+        /**
+         * @return Wall-clock time of the discard in epoch milliseconds.
+         */
+        public long getFailedAt() {
+            return failedAt;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public String getTaskId() {
+            return taskId;
+        }
+
+        public PFNETAgent.ResourceVector getResources() {
+            return resources;
+        }
+
+        public int getExecutionTime() {
+            return executionTime;
+        }
+
+        public PFNETAgent.Priority getPriority() {
+            return priority;
+        }
+
+        public int getRetryCount() {
+            return retryCount;
+        }
+
+        /**
+         * @return The user the task ran for, or null if it had no owner.
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        public Map<String, String> getRequiredLabels() {
+            return requiredLabels;
+        }
+
+        public Map<String, String> getAvoidedLabels() {
+            return avoidedLabels;
+        }
+
+        /**
+         * @return The task's spread group, or null if it had none.
+         */
+        public String getSpreadGroup() {
+            return spreadGroup;
+        }
+
+        /**
+         * @return The task's deadline in epoch milliseconds, or 0 if it had none.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * @return The task's type.
+         */
+        public String getType() {
+            return type;
+        }
+
+        PFNETAgent.Task toTask() {
+            PFNETAgent.Task task = new PFNETAgent.Task(taskId, resources, executionTime, priority);
+            task.setOwner(owner);
+            requiredLabels.forEach(task::requireLabel);
+            avoidedLabels.forEach(task::avoidLabel);
+            if (spreadGroup != null) {
+                task.spreadAcross(spreadGroup);
+            }
+            if (deadline > 0) {
+                task.withDeadline(deadline);
+            }
+            if (type != null) {
+                task.ofType(type);
+            }
+            return task;
+        }
+
+        String encode() {
+            return String.join(FIELD_SEPARATOR,
+                    Long.toString(failedAt),
+                    escape(taskId),
+                    Integer.toString(resources.getCpu()),
+                    Integer.toString(resources.getMemory()),
+                    Integer.toString(resources.getIo()),
+                    Integer.toString(executionTime),
+                    priority.name(),
+                    Integer.toString(retryCount),
+                    escape(reason),
+                    owner == null ? "" : escape(owner),
+                    encodeLabels(requiredLabels),
+                    encodeLabels(avoidedLabels),
+                    spreadGroup == null ? "" : escape(spreadGroup),
+                    Long.toString(deadline),
+                    type == null ? "" : escape(type));
+        }
+
+        /**
+         * @return The entry, or null if the line is damaged.
+         */
+        static Entry decode(String line) {
+            String[] fields = line.split(FIELD_SEPARATOR, -1);
+            if (fields.length != FIELD_COUNT) {
+                return null;
+            }
+            try {
+                PFNETAgent.ResourceVector resources = new PFNETAgent.ResourceVector(
+                        Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+                return new Entry(Long.parseLong(fields[0]), unescape(fields[8]), unescape(fields[1]), resources,
+                        Integer.parseInt(fields[5]), PFNETAgent.Priority.valueOf(fields[6]), Integer.parseInt(fields[7]),
+                        fields[9].isEmpty() ? null : unescape(fields[9]),
+                        decodeLabels(fields[10]),
+                        decodeLabels(fields[11]),
+                        fields[12].isEmpty() ? null : unescape(fields[12]),
+                        Long.parseLong(fields[13]),
+                        fields[14].isEmpty() ? null : unescape(fields[14]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Writes labels as key=value pairs separated by commas, with both separators escaped
+         * inside keys and values.
+         */
+        private static String encodeLabels(Map<String, String> labels) {
+            StringBuilder result = new StringBuilder();
+            for (Map.Entry<String, String> label : new TreeMap<>(labels).entrySet()) {
+                if (result.length() > 0) {
+                    result.append(LABEL_SEPARATOR);
+                }
+                result.append(escapeLabel(label.getKey())).append(LABEL_ASSIGNMENT).append(escapeLabel(label.getValue()));
+            }
+            return result.toString();
+        }
+
+        private static Map<String, String> decodeLabels(String field) {
+            if (field.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<String, String> labels = new TreeMap<>();
+            for (String pair : splitUnescaped(field, LABEL_SEPARATOR)) {
+                List<String> parts = splitUnescaped(pair, LABEL_ASSIGNMENT);
+                if (parts.size() != 2) {
+                    throw new IllegalArgumentException("Damaged label: " + pair);
+                }
+                labels.put(unescape(parts.get(0)), unescape(parts.get(1)));
+            }
+            return Collections.unmodifiableMap(labels);
+        }
+
+        private static String escapeLabel(String value) {
+            return escape(value).replace(String.valueOf(LABEL_SEPARATOR), "\\" + LABEL_SEPARATOR)
+                    .replace(String.valueOf(LABEL_ASSIGNMENT), "\\" + LABEL_ASSIGNMENT);
+        }
+
+        /**
+         * Splits at every occurrence of the separator that is not preceded by an escaping backslash.
+         */
+        private static List<String> splitUnescaped(String value, char separator) {
+            List<String> parts = new ArrayList<>();
+            int from = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == separator) {
+                    parts.add(value.substring(from, i));
+                    from = i + 1;
+                }
+            }
+            parts.add(value.substring(from));
+            return parts;
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        private static String unescape(String value) {
+            StringBuilder result = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length()) {
+                    char next = value.charAt(++i);
+                    result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+                } else {
+                    result.append(c);
+                }
+            }
+            return result.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "taskId='" + taskId + '\'' +
+                    ", resources=" + resources +
+                    ", reason='" + reason + '\'' +
+                    '}';
+        }
+    }
+}
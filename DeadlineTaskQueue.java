@@ -0,0 +1,95 @@
+package com.pfnet;
+
+import java.util.AbstractQueue;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DeadlineTaskQueue - A concurrent earliest-deadline-first queue of tasks.
+ *
+ * Tasks are kept in a lock-free skip list ordered by deadline, then by arrival, so producers and
+ * the dispatcher never contend on a lock. Tasks without a deadline sort after all tasks that have
+ * one and are served in arrival order among themselves.
+ */
+class DeadlineTaskQueue extends AbstractQueue<PFNETAgent.Task> {
+
+    private static final Comparator<PFNETAgent.Task> EARLIEST_DEADLINE_FIRST =
+            Comparator.comparingLong(DeadlineTaskQueue::sortKey)
+                    .thenComparingLong(PFNETAgent.Task::getQueueSequence);
+
+    private final ConcurrentSkipListSet<PFNETAgent.Task> tasks;
+    private final AtomicLong sequence;
+    private final LongAdder size;
+
+    DeadlineTaskQueue() {
+        this.tasks = new ConcurrentSkipListSet<>(EARLIEST_DEADLINE_FIRST);
+        this.sequence = new AtomicLong();
+        this.size = new LongAdder();
+    }
+
+    private static long sortKey(PFNETAgent.Task task) {
+        return task.hasDeadline() ? task.getDeadline() : Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean offer(PFNETAgent.Task task) {
+        task.markEnqueued(System.nanoTime());
+        task.setQueueSequence(sequence.getAndIncrement()); // Unique, so no two tasks compare equal
+        tasks.add(task);
+        size.increment();
+        return true;
+    }
+
+    @Override
+    public PFNETAgent.Task poll() {
+        PFNETAgent.Task task = tasks.pollFirst();
+        if (task != null) {
+            size.decrement();
+        }
+        return task;
+    }
+
+    @Override
+    public PFNETAgent.Task peek() {
+        Iterator<PFNETAgent.Task> iterator = tasks.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size.sum()));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    /**
+     * Iterates in deadline order.
+     */
+    @Override
+    public Iterator<PFNETAgent.Task> iterator() {
+        Iterator<PFNETAgent.Task> iterator = tasks.iterator();
+        return new Iterator<PFNETAgent.Task>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public PFNETAgent.Task next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                size.decrement();
+            }
+        };
+    }
+}
@@ -0,0 +1,194 @@
+package com.pfnet;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * FairShareTaskQueue - A task queue that shares dispatch between task owners by deficit round robin.
+ *
+ * Every owner gets a lane of its own, such as a {@link PriorityTaskQueue}, so the usual ordering
+ * still applies within an owner's tasks. Owners with queued tasks take turns: on each turn an owner's
+ * deficit grows by its weight times a quantum, and it may dequeue tasks for as long as their cost
+ * fits the deficit. The quantum follows the largest cost seen, so every owner can dequeue at least
+ * one task per turn and a dequeue costs O(1) regardless of the number of owners.
+ *
+ * An owner's lane is dropped once it runs empty, when its deficit is forfeited anyway, so owners
+ * that stop submitting cost nothing. Enqueueing only locks the owner's entry in the lane map, which
+ * keeps a task from landing in a lane that is being dropped; dequeues, which come from the shard's
+ * dispatcher and occasional stealers, share one lock for the round-robin state.
+ */
+class FairShareTaskQueue extends AbstractQueue<PFNETAgent.Task> {
+
+    private static final String NO_OWNER = "";
+
+    private final Supplier<Queue<PFNETAgent.Task>> laneFactory;
+    private final ToDoubleFunction<PFNETAgent.Task> cost;
+    private final Map<String, Integer> weights;
+    private final Map<String, OwnerLane> lanes;
+    private final ConcurrentLinkedQueue<OwnerLane> activeLanes; // Owners with queued tasks, in turn order
+    private final ReentrantLock pollLock;
+    private final LongAdder size;
+    private OwnerLane current;          // Owner whose turn it is, guarded by pollLock
+    private volatile double quantum;    // Largest task cost seen so far
+
+    /**
+     * @param laneFactory Creates the concurrent queue holding one owner's tasks.
+     * @param cost        Cost charged for dispatching a task.
+     * @param weights     Owner weights, read at the start of each turn; missing owners weigh 1.
+     */
+    FairShareTaskQueue(Supplier<Queue<PFNETAgent.Task>> laneFactory, ToDoubleFunction<PFNETAgent.Task> cost, Map<String, Integer> weights) {
+        this.laneFactory = laneFactory;
+        this.cost = cost;
+        this.weights = weights;
+        this.lanes = new ConcurrentHashMap<>();
+        this.activeLanes = new ConcurrentLinkedQueue<>();
+        this.pollLock = new ReentrantLock();
+        this.size = new LongAdder();
+    }
+
+    @Override
+    public boolean offer(PFNETAgent.Task task) {
+        String owner = Objects.toString(task.getOwner(), NO_OWNER);
+        OwnerLane lane = lanes.compute(owner, (key, existing) -> {
+            OwnerLane target = existing != null ? existing : new OwnerLane(key, laneFactory.get());
+            target.tasks.offer(task);
+            return target;
+        });
+        size.increment();
+        if (lane.active.compareAndSet(false, true)) {
+            activeLanes.offer(lane);
+        }
+        return true;
+    }
+
+    @Override
+    public PFNETAgent.Task poll() {
+        pollLock.lock();
+        try {
+            while (true) {
+                OwnerLane lane = current;
+                if (lane == null) {
+                    lane = activeLanes.poll();
+                    if (lane == null) {
+                        return null;
+                    }
+                    lane.deficit += weightOf(lane.owner) * Math.max(quantum, Double.MIN_NORMAL);
+                    current = lane;
+                }
+                PFNETAgent.Task head = lane.tasks.peek();
+                if (head == null) {
+                    // Lane drained: it leaves the rotation, forfeits its deficit and is dropped
+                    lane.deficit = 0;
+                    current = null;
+                    lane.active.set(false);
+                    if (!lane.tasks.isEmpty() && lane.active.compareAndSet(false, true)) {
+                        activeLanes.offer(lane); // A task arrived while the lane was being retired
+                    } else {
+                        OwnerLane drained = lane;
+                        lanes.computeIfPresent(lane.owner, (key, existing) ->
+                                existing == drained && existing.tasks.isEmpty() ? null : existing);
+                    }
+                    continue;
+                }
+                double headCost = costOf(head);
+                if (headCost <= lane.deficit) {
+                    PFNETAgent.Task task = lane.tasks.poll();
+                    if (task != null) {
+                        lane.deficit -= costOf(task);
+                        size.decrement();
+                        return task;
+                    }
+                    continue;
+                }
+                // Turn over: the lane keeps its deficit and goes to the back of the rotation
+                current = null;
+                activeLanes.offer(lane);
+            }
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the head of the owner whose turn comes next, without charging it.
+     */
+    @Override
+    public PFNETAgent.Task peek() {
+        pollLock.lock();
+        try {
+            if (current != null) {
+                PFNETAgent.Task head = current.tasks.peek();
+                if (head != null) {
+                    return head;
+                }
+            }
+            for (OwnerLane lane : activeLanes) {
+                PFNETAgent.Task head = lane.tasks.peek();
+                if (head != null) {
+                    return head;
+                }
+            }
+            return null;
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    private double costOf(PFNETAgent.Task task) {
+        double value = cost.applyAsDouble(task);
+        if (value > quantum) {
+            quantum = value; // Only raised under pollLock
+        }
+        return value;
+    }
+
+    private int weightOf(String owner) {
+        return Math.max(1, weights.getOrDefault(owner, 1));
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size.sum()));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.sum() <= 0;
+    }
+
+    /**
+     * Iterates over a snapshot of all queued tasks, owner by owner.
+     */
+    @Override
+    public Iterator<PFNETAgent.Task> iterator() {
+        List<PFNETAgent.Task> snapshot = new ArrayList<>();
+        for (OwnerLane lane : lanes.values()) {
+            snapshot.addAll(lane.tasks);
+        }
+        return snapshot.iterator();
+    }
+
+    private static final class OwnerLane {
+        private final String owner;
+        private final Queue<PFNETAgent.Task> tasks;
+        private final AtomicBoolean active = new AtomicBoolean(); // True while in activeLanes or current
+        private double deficit;                                    // Guarded by pollLock
+
+        OwnerLane(String owner, Queue<PFNETAgent.Task> tasks) {
+            this.owner = owner;
+            this.tasks = tasks;
+        }
+    }
+}
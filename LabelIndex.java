@@ -0,0 +1,64 @@
+package com.pfnet;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LabelIndex - An inverted index from node labels to the nodes carrying them.
+ *
+ * A label is a key=value pair such as region=eu or gpu=a100. Looking up the nodes with a label is a
+ * single hash lookup, so placing a task that requires labels only visits matching nodes.
+ */
+class LabelIndex {
+
+    private final Map<String, Set<PFNETAgent.MachineNode>> byLabel;
+
+    LabelIndex() {
+        this.byLabel = new ConcurrentHashMap<>();
+    }
+
+    void add(PFNETAgent.MachineNode node) {
+        for (Map.Entry<String, String> label : node.getLabels().entrySet()) {
+            byLabel.computeIfAbsent(key(label.getKey(), label.getValue()), k -> ConcurrentHashMap.newKeySet()).add(node);
+        }
+    }
+
+    void remove(PFNETAgent.MachineNode node) {
+        for (Map.Entry<String, String> label : node.getLabels().entrySet()) {
+            byLabel.computeIfPresent(key(label.getKey(), label.getValue()), (k, nodes) -> {
+                nodes.remove(node);
+                return nodes.isEmpty() ? null : nodes;
+            });
+        }
+    }
+
+    /**
+     * @return A live view of the nodes carrying the label, empty if there are none.
+     */
+    Set<PFNETAgent.MachineNode> nodesWith(String key, String value) {
+        return byLabel.getOrDefault(key(key, value), Collections.emptySet());
+    }
+
+    /**
+     * Returns the smallest of the node sets for the given labels; every node carrying all of the
+     * labels is in it.
+     *
+     * @param labels Required labels, not empty.
+     */
+    Set<PFNETAgent.MachineNode> narrowest(Map<String, String> labels) {
+        Set<PFNETAgent.MachineNode> narrowest = null;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            Set<PFNETAgent.MachineNode> nodes = nodesWith(label.getKey(), label.getValue());
+            if (narrowest == null || nodes.size() < narrowest.size()) {
+                narrowest = nodes;
+            }
+        }
+        return narrowest;
+    }
+
+    private static String key(String key, String value) {
+        return key + '=' + value;
+    }
+}
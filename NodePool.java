@@ -0,0 +1,145 @@
+package com.pfnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * NodePool - An append-only array of all registered nodes, for sampled placement.
+ *
+ * Dispatchers pick random slots from the array and compare a handful of nodes, so a placement
+ * touches no shared ordering and takes no lock: reading the array is two volatile reads and each
+ * probe is bounded. Registrations append under the pool's monitor. Removed nodes stay in their slot
+ * and are skipped by the samplers until they make up half of the array, at which point the live
+ * nodes are copied into a fresh array; samplers still holding the old one keep working on it.
+ */
+class NodePool {
+
+    private static final int INITIAL_SLOTS = 16;
+
+    private volatile Slots slots = new Slots(new PFNETAgent.MachineNode[INITIAL_SLOTS], 0);
+    private int removed; // Retired nodes still in the array, guarded by this
+
+    synchronized void add(PFNETAgent.MachineNode node) {
+        Slots current = slots;
+        int size = current.size;
+        if (size == current.nodes.length) {
+            current = new Slots(Arrays.copyOf(current.nodes, size * 2), size);
+            slots = current;
+        }
+        current.nodes[size] = node;
+        current.size = size + 1; // Publishes the slot
+    }
+
+    /**
+     * Records that a retired node left the pool, compacting the array once half of it is dead.
+     */
+    synchronized void remove(PFNETAgent.MachineNode node) {
+        Slots current = slots;
+        if (++removed * 2 < current.size) {
+            return;
+        }
+        PFNETAgent.MachineNode[] live = new PFNETAgent.MachineNode[Math.max(INITIAL_SLOTS, current.size)];
+        int count = 0;
+        for (int i = 0; i < current.size; i++) {
+            if (!current.nodes[i].isRetired()) {
+                live[count++] = current.nodes[i];
+            }
+        }
+        slots = new Slots(live, count);
+        removed = 0;
+    }
+
+    /**
+     * Samples random nodes until {@code choices} of them can hold the task, or {@code probes} slots
+     * have been looked at, and returns the least loaded one: the node left with the largest free
+     * share of its scarcest resource.
+     *
+     * @return The chosen node, or null if no sampled node can hold the task.
+     */
+    PFNETAgent.MachineNode choose(PFNETAgent.Task task, int choices, int probes) {
+        Slots current = slots;
+        int size = current.size;
+        if (size == 0) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        PFNETAgent.ResourceVector demand = task.getResources();
+        PFNETAgent.MachineNode best = null;
+        double bestFree = -1;
+        int found = 0;
+        for (int probe = 0; probe < probes && found < choices; probe++) {
+            PFNETAgent.MachineNode node = current.nodes[random.nextInt(size)];
+            if (node.isRetired() || !node.admits(task)) {
+                continue;
+            }
+            PFNETAgent.ResourceVector available = node.getAvailableResources();
+            if (!available.fits(demand)) {
+                continue;
+            }
+            found++;
+            double free = freeShare(available, node.getTotalResources());
+            if (free > bestFree) {
+                bestFree = free;
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks {@code probes} random slots and returns the live nodes in them, possibly repeated.
+     */
+    List<PFNETAgent.MachineNode> sample(int probes) {
+        Slots current = slots;
+        int size = current.size;
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<PFNETAgent.MachineNode> sampled = new ArrayList<>(probes);
+        for (int probe = 0; probe < probes; probe++) {
+            PFNETAgent.MachineNode node = current.nodes[random.nextInt(size)];
+            if (!node.isRetired()) {
+                sampled.add(node);
+            }
+        }
+        return sampled;
+    }
+
+    /**
+     * @return The smallest share of any resource the node still has free, 1 for an idle node.
+     */
+    static double freeShare(PFNETAgent.ResourceVector available, PFNETAgent.ResourceVector total) {
+        double free = 1.0;
+        if (total.getCpu() > 0) {
+            free = Math.min(free, (double) available.getCpu() / total.getCpu());
+        }
+        if (total.getMemory() > 0) {
+            free = Math.min(free, (double) available.getMemory() / total.getMemory());
+        }
+        if (total.getIo() > 0) {
+            free = Math.min(free, (double) available.getIo() / total.getIo());
+        }
+        return free;
+    }
+
+    /**
+     * @return The number of slots in use, including retired nodes not yet compacted away.
+     */
+    int size() {
+        return slots.size;
+    }
+
+    private static final class Slots {
+        private final PFNETAgent.MachineNode[] nodes;
+        private volatile int size;
+
+        Slots(PFNETAgent.MachineNode[] nodes, int size) {
+            this.nodes = nodes;
+            this.size = size;
+        }
+    }
+}
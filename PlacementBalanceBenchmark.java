@@ -0,0 +1,151 @@
+package com.pfnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PlacementBalanceBenchmark - Compares sampled power-of-two-choices placement with exact best-fit.
+ *
+ * A pool of volunteer nodes of mixed sizes is filled to a target share of its CPU by many
+ * concurrent dispatcher threads, once per placement mode. For each mode the benchmark reports the
+ * placement throughput and how evenly the load ended up spread: the mean and standard deviation of
+ * node utilization, the most loaded node and the share of nodes left idle. Best-fit packs tasks onto
+ * as few nodes as possible by design; power-of-two-choices trades that for an even spread without
+ * any shared ordering.
+ */
+public class PlacementBalanceBenchmark {
+
+    private static final int NODE_COUNT = 20_000;
+    private static final int[] NODE_SIZES = {50, 100, 200, 400};
+    private static final int MAX_TASK_CPU = 20;
+    private static final double TARGET_LOAD = 0.6;
+    private static final int THREADS = 16;
+    private static final int SHARDS = 8;
+
+    /**
+     * A reservation made by the benchmark, released again after measuring.
+     */
+    private static final class Placement {
+        private final PFNETAgent.MachineNode node;
+        private final PFNETAgent.Task task;
+
+        Placement(PFNETAgent.MachineNode node, PFNETAgent.Task task) {
+            this.node = node;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Places random tasks from all threads until the target CPU load is reached, releases every
+     * reservation again and returns the result row.
+     */
+    private static String run(PFNETAgent agent, List<PFNETAgent.MachineNode> nodes, long targetCpu, PFNETAgent.PlacementMode mode)
+            throws InterruptedException {
+        agent.setPlacementMode(mode);
+        AtomicLong placedCpu = new AtomicLong();
+        AtomicLong sequence = new AtomicLong();
+        List<List<Placement>> placements = new ArrayList<>();
+        CountDownLatch startGate = new CountDownLatch(1);
+        Thread[] workers = new Thread[THREADS];
+
+        for (int t = 0; t < THREADS; t++) {
+            List<Placement> placed = new ArrayList<>();
+            placements.add(placed);
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    startGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                while (placedCpu.get() < targetCpu) {
+                    int cpu = 1 + random.nextInt(MAX_TASK_CPU);
+                    PFNETAgent.Task task = new PFNETAgent.Task("Bench" + sequence.getAndIncrement(), cpu, 1000);
+                    PFNETAgent.MachineNode node = agent.reserveNode(task);
+                    if (node == null) {
+                        break;
+                    }
+                    placed.add(new Placement(node, task));
+                    placedCpu.addAndGet(cpu);
+                }
+            });
+            workers[t].start();
+        }
+
+        long start = System.nanoTime();
+        startGate.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int count = 0;
+        for (List<Placement> placed : placements) {
+            count += placed.size();
+        }
+        double sum = 0;
+        double sumOfSquares = 0;
+        double max = 0;
+        int idle = 0;
+        for (PFNETAgent.MachineNode node : nodes) {
+            double utilization = 1.0 - (double) node.getAvailableCapacity() / node.getTotalCapacity();
+            sum += utilization;
+            sumOfSquares += utilization * utilization;
+            max = Math.max(max, utilization);
+            if (utilization == 0) {
+                idle++;
+            }
+        }
+        double mean = sum / nodes.size();
+        double deviation = Math.sqrt(Math.max(0, sumOfSquares / nodes.size() - mean * mean));
+
+        for (List<Placement> placed : placements) {
+            for (Placement placement : placed) {
+                placement.node.release(placement.task.getResources());
+            }
+        }
+        return String.format("%-22s %14.0f %10.3f %10.3f %10.3f %9.1f%%",
+                mode, count / seconds, mean, deviation, max, 100.0 * idle / nodes.size());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        PFNETAgent agent = new PFNETAgent(SHARDS);
+        List<PFNETAgent.NodeRegistration> registrations = new ArrayList<>(NODE_COUNT);
+        long totalCpu = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < NODE_COUNT; i++) {
+            int size = NODE_SIZES[random.nextInt(NODE_SIZES.length)];
+            registrations.add(new PFNETAgent.NodeRegistration("Volunteer" + i, size));
+            totalCpu += size;
+        }
+        agent.registerNodes(registrations);
+        List<PFNETAgent.MachineNode> nodes = new ArrayList<>(NODE_COUNT);
+        for (PFNETAgent.NodeRegistration registration : registrations) {
+            nodes.add(agent.getNode(registration.getNodeId()));
+        }
+        long targetCpu = Math.round(totalCpu * TARGET_LOAD);
+
+        // Warm up both paths before measuring
+        PFNETAgent.PlacementMode[] modes = {PFNETAgent.PlacementMode.BEST_FIT, PFNETAgent.PlacementMode.POWER_OF_TWO_CHOICES};
+        for (PFNETAgent.PlacementMode mode : modes) {
+            run(agent, nodes, targetCpu, mode);
+        }
+
+        List<String> rows = new ArrayList<>();
+        for (PFNETAgent.PlacementMode mode : modes) {
+            rows.add(run(agent, nodes, targetCpu, mode));
+        }
+        agent.stop();
+
+        System.out.println();
+        System.out.println(NODE_COUNT + " nodes filled to " + Math.round(TARGET_LOAD * 100) + "% of CPU by " + THREADS + " threads");
+        System.out.println("mode                   placements/s   mean util    std dev   max util      idle");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.pfnet;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PriorityTaskQueue - A concurrent multi-level queue of tasks, one FIFO lane per priority class.
+ *
+ * Enqueueing appends to the lane of the task's priority and touches nothing shared across lanes.
+ * Dequeueing looks only at the head of each lane: a head's rank is its priority level minus the time
+ * it has waited, measured in aging steps, so a low-priority task that has waited long enough is served
+ * ahead of fresher high-priority work instead of starving.
+ */
+class PriorityTaskQueue extends AbstractQueue<PFNETAgent.Task> {
+
+    private final ConcurrentLinkedQueue<PFNETAgent.Task>[] lanes;
+    private final LongAdder size;
+    private final long agingStepNanos;
+
+    /**
+     * @param agingStepMillis How long a task must wait to gain one priority level.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    PriorityTaskQueue(long agingStepMillis) {
+        if (agingStepMillis <= 0) {
+            throw new IllegalArgumentException("Aging step must be positive: " + agingStepMillis);
+        }
+        int levels = PFNETAgent.Priority.values().length;
+        this.lanes = new ConcurrentLinkedQueue[levels];
+        for (int i = 0; i < levels; i++) {
+            lanes[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.size = new LongAdder();
+        this.agingStepNanos = TimeUnit.MILLISECONDS.toNanos(agingStepMillis);
+    }
+
+    @Override
+    public boolean offer(PFNETAgent.Task task) {
+        task.markEnqueued(System.nanoTime());
+        lanes[task.getPriority().ordinal()].offer(task);
+        size.increment();
+        return true;
+    }
+
+    @Override
+    public PFNETAgent.Task poll() {
+        while (true) {
+            int lane = selectLane(System.nanoTime());
+            if (lane < 0) {
+                return null;
+            }
+            PFNETAgent.Task task = lanes[lane].poll();
+            if (task != null) {
+                size.decrement();
+                return task;
+            }
+            // Another consumer emptied the lane between the peek and the poll; look again.
+        }
+    }
+
+    @Override
+    public PFNETAgent.Task peek() {
+        while (true) {
+            int lane = selectLane(System.nanoTime());
+            if (lane < 0) {
+                return null;
+            }
+            PFNETAgent.Task task = lanes[lane].peek();
+            if (task != null) {
+                return task;
+            }
+        }
+    }
+
+    /**
+     * Picks the lane whose head has the best aged rank; ties go to the higher priority class.
+     *
+     * @return The lane index, or -1 if every lane is empty.
+     */
+    private int selectLane(long now) {
+        int best = -1;
+        long bestRank = Long.MAX_VALUE;
+        for (int level = 0; level < lanes.length; level++) {
+            PFNETAgent.Task head = lanes[level].peek();
+            if (head == null) {
+                continue;
+            }
+            long rank = level * agingStepNanos - (now - head.getEnqueuedAt());
+            if (rank < bestRank) {
+                bestRank = rank;
+                best = level;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size.sum()));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (ConcurrentLinkedQueue<PFNETAgent.Task> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Iterates lane by lane, highest priority first, without regard to aging.
+     */
+    @Override
+    public Iterator<PFNETAgent.Task> iterator() {
+        return new Iterator<PFNETAgent.Task>() {
+            private int lane;
+            private Iterator<PFNETAgent.Task> current = lanes[0].iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (++lane >= lanes.length) {
+                        return false;
+                    }
+                    current = lanes[lane].iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public PFNETAgent.Task next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                current.remove();
+                size.decrement();
+            }
+        };
+    }
+}
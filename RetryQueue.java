@@ -0,0 +1,158 @@
+package com.pfnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * RetryQueue - Parks tasks that found no node until a backoff delay has passed or capacity frees up.
+ *
+ * Each parked task gets a timer entry on the agent's timing wheel, set to an exponentially growing
+ * delay with jitter, so that tasks which failed together do not all come back on the same tick. The
+ * parked tasks are also kept ordered by required CPU, which lets a node that releases resources pull
+ * the smallest parked tasks it can hold straight back into its shard instead of leaving them to wait
+ * out their delay.
+ */
+class RetryQueue {
+
+    private static final int SEQUENCE_BITS = 40;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int WAKE_SCAN_LIMIT = 64; // Parked tasks inspected per released node
+
+    private final TimingWheel timer;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Consumer<PFNETAgent.Task> onExpired;
+    private final ConcurrentSkipListMap<Long, Parked> parked; // Keyed by required CPU, then parking order
+    private final AtomicLong sequence;
+
+    /**
+     * @param timer           Timer the backoff delays run on.
+     * @param baseDelayMillis Delay before the first retry; doubles with each further retry.
+     * @param maxDelayMillis  Upper bound for the delay.
+     * @param onExpired       Receives tasks whose delay has passed.
+     */
+    RetryQueue(TimingWheel timer, long baseDelayMillis, long maxDelayMillis, Consumer<PFNETAgent.Task> onExpired) {
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry delays: base " + baseDelayMillis + ", max " + maxDelayMillis);
+        }
+        this.timer = timer;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.onExpired = onExpired;
+        this.parked = new ConcurrentSkipListMap<>();
+        this.sequence = new AtomicLong();
+    }
+
+    /**
+     * Parks a task until its backoff delay for the given attempt has passed.
+     *
+     * @param attempt The retry number, starting at 1.
+     * @return The chosen delay in milliseconds.
+     */
+    long park(PFNETAgent.Task task, int attempt) {
+        long delay = backoff(attempt);
+        long key = ((long) task.getRequiredCapacity() << SEQUENCE_BITS) | (sequence.getAndIncrement() & SEQUENCE_MASK);
+        Parked entry = new Parked(key, task);
+        parked.put(key, entry);
+        entry.timeout = timer.schedule(entry, delay);
+        return delay;
+    }
+
+    /**
+     * Hands parked tasks that fit into the given free resources to the sink, smallest first, and
+     * cancels their timers. Tasks are taken only while the remaining room still covers them, so a
+     * release of 10 units does not wake a hundred tasks that each need 10.
+     *
+     * @return The number of tasks woken.
+     */
+    int wake(PFNETAgent.ResourceVector available, Consumer<PFNETAgent.Task> sink) {
+        if (parked.isEmpty()) {
+            return 0;
+        }
+        PFNETAgent.ResourceVector room = available;
+        int woken = 0;
+        int scanned = 0;
+        for (Parked entry : parked.headMap((long) (room.getCpu() + 1) << SEQUENCE_BITS).values()) {
+            PFNETAgent.ResourceVector demand = entry.task.getResources();
+            if (demand.getCpu() > room.getCpu() || ++scanned > WAKE_SCAN_LIMIT) {
+                break;
+            }
+            if (!room.fits(demand) || !parked.remove(entry.key, entry)) {
+                continue;
+            }
+            TimingWheel.Timeout timeout = entry.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            room = room.minus(demand);
+            sink.accept(entry.task);
+            woken++;
+        }
+        return woken;
+    }
+
+    /**
+     * Removes every parked task and cancels its timer.
+     *
+     * @return The tasks that were parked.
+     */
+    List<PFNETAgent.Task> clear() {
+        List<PFNETAgent.Task> cleared = new ArrayList<>();
+        for (Parked entry : parked.values()) {
+            if (parked.remove(entry.key, entry)) {
+                TimingWheel.Timeout timeout = entry.timeout;
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+                cleared.add(entry.task);
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * @return The number of tasks currently parked.
+     */
+    int size() {
+        return parked.size();
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half of the capped delay is fixed, the other half random.
+     */
+    private long backoff(int attempt) {
+        long delay = maxDelayMillis;
+        int shift = Math.max(0, attempt - 1);
+        if (shift < Long.numberOfLeadingZeros(Math.max(1, baseDelayMillis)) - 1) {
+            delay = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        }
+        long half = delay / 2;
+        return delay - half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * A parked task and its timer callback. Whichever of the timer and an early wake removes the
+     * entry from the map first gets to hand the task on.
+     */
+    private final class Parked implements Runnable {
+        private final long key;
+        private final PFNETAgent.Task task;
+        private volatile TimingWheel.Timeout timeout;
+
+        Parked(long key, PFNETAgent.Task task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (parked.remove(key, this)) {
+                onExpired.accept(task);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.pfnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * RuntimeEstimate - Online estimate of how long tasks actually run compared with their declared time.
+ *
+ * Each sample is the ratio of an observed runtime to the task's declared executionTime, so tasks of
+ * one type but different sizes share an estimate. The estimate keeps an exponentially weighted mean
+ * and a running estimate of the {@value #QUANTILE} quantile, which moves up by a small step when a
+ * sample lies above it and down when one lies below, so it settles where that share of samples
+ * stays under it. Both are doubles kept in an AtomicLong and updated by compare-and-set, so
+ * recording and reading never block.
+ */
+class RuntimeEstimate {
+
+    static final double QUANTILE = 0.9;
+    private static final double ALPHA = 0.2;          // Weight of the newest sample in the mean
+    private static final double QUANTILE_STEP = 0.05; // Quantile step as a fraction of the mean
+    private static final double MIN_STEP = 1e-3;
+
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong mean = new AtomicLong(Double.doubleToRawLongBits(1.0));
+    private final AtomicLong quantile = new AtomicLong(Double.doubleToRawLongBits(1.0));
+
+    /**
+     * Adds an observation.
+     *
+     * @param ratio Observed runtime divided by the declared execution time.
+     */
+    void record(double ratio) {
+        if (!(ratio > 0) || Double.isInfinite(ratio)) {
+            return;
+        }
+        boolean first = samples.getAndIncrement() == 0;
+        double updatedMean = update(mean, current -> first ? ratio : current + ALPHA * (ratio - current));
+        double step = Math.max(updatedMean * QUANTILE_STEP, MIN_STEP);
+        update(quantile, current -> first ? ratio
+                : ratio > current ? current + step * QUANTILE : Math.max(0, current - step * (1 - QUANTILE)));
+    }
+
+    /**
+     * Adds an observation that only bounds the ratio from below, such as the time a cancelled
+     * execution had run. A bound above the mean is recorded as a sample; one at or below it says
+     * nothing new and is dropped rather than pulling the estimate down.
+     *
+     * @param ratio Runtime observed so far divided by the declared execution time.
+     */
+    void recordAtLeast(double ratio) {
+        if (ratio > getMean()) {
+            record(ratio);
+        }
+    }
+
+    private static double update(AtomicLong cell, DoubleUnaryOperator function) {
+        while (true) {
+            long current = cell.get();
+            double next = function.applyAsDouble(Double.longBitsToDouble(current));
+            if (cell.compareAndSet(current, Double.doubleToRawLongBits(next))) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * @return The number of observations so far.
+     */
+    long getSamples() {
+        return samples.get();
+    }
+
+    /**
+     * @return The weighted mean ratio, 1 until the first observation.
+     */
+    double getMean() {
+        return Double.longBitsToDouble(mean.get());
+    }
+
+    /**
+     * @return The estimated {@value #QUANTILE} quantile of the ratio, 1 until the first observation.
+     */
+    double getQuantile() {
+        return Double.longBitsToDouble(quantile.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RuntimeEstimate{samples=%d, mean=%.3f, p%d=%.3f}",
+                getSamples(), getMean(), Math.round(QUANTILE * 100), getQuantile());
+    }
+}
@@ -1,6 +1,7 @@
 package com.pfnet;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.io.OutputStream;
@@ -14,12 +15,23 @@ import java.io.OutputStream;
  */
 public class SocialMediaBot {
 
+    private static final int MAX_CONCURRENT_POSTS = 4;
+
     private final String apiUrl;
     private final String apiKey;
+    private final SubsystemExecutor publisher; // Runs the blocking HTTP calls of postUpdateAsync
 
     public SocialMediaBot(String apiUrl, String apiKey) {
+        this(apiUrl, apiKey, PFNETAgent.ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * @param mode Thread kind used for asynchronous posts; VIRTUAL suits these I/O-bound calls.
+     */
+    public SocialMediaBot(String apiUrl, String apiKey, PFNETAgent.ExecutionMode mode) {
         this.apiUrl = apiUrl;
         this.apiKey = apiKey;
+        this.publisher = SubsystemExecutor.create("social-media", mode, MAX_CONCURRENT_POSTS);
     }
 
     /**
@@ -57,6 +69,17 @@ public class SocialMediaBot {
         }
     }
 
+    /**
+     * Posts a message without blocking the caller. At most {@value #MAX_CONCURRENT_POSTS} posts are
+     * in flight at once.
+     *
+     * @param message The message to be posted.
+     * @return A future that completes with the result of {@link #postUpdate(String)}.
+     */
+    public CompletableFuture<Boolean> postUpdateAsync(String message) {
+        return publisher.submit(() -> postUpdate(message));
+    }
+
     /**
      * Generates a status update message based on the current network state.
      * 
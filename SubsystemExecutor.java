@@ -0,0 +1,275 @@
+package com.pfnet;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * SubsystemExecutor - Runs the blocking work of one agent subsystem on platform or virtual threads.
+ *
+ * Every subsystem (task runners, dead-letter writes, social media posts, ...) gets its own executor with
+ * its own concurrency limit, so a burst in one cannot starve the others. In platform mode the limit is
+ * the size of a bounded thread pool; in virtual mode each command gets a fresh virtual thread that waits
+ * for a permit before running. Virtual threads are created reflectively so the agent still runs on JDKs
+ * without them, falling back to platform threads.
+ *
+ * In virtual mode a JFR stream counts jdk.VirtualThreadPinned events per subsystem, which shows whether
+ * blocking inside synchronized code is holding carrier threads.
+ */
+public class SubsystemExecutor implements Executor {
+
+    private static final Duration PINNING_THRESHOLD = Duration.ofMillis(20); // Same as the JDK's default profile
+
+    private final String name;
+    private final String threadPrefix;
+    private final PFNETAgent.ExecutionMode mode;
+    private final int maxConcurrency;
+    private final ThreadFactory virtualThreads;         // Virtual mode only
+    private final Semaphore permits;                    // Virtual mode only
+    private final ThreadPoolExecutor platformThreads;   // Platform mode only
+    private final AtomicInteger active;
+    private final LongAdder completed;
+    private final LongAdder failed;
+    private final LongAdder pinnedEvents;
+    private final LongAdder pinnedNanos;
+    private volatile boolean shutdown;
+
+    private SubsystemExecutor(String name, PFNETAgent.ExecutionMode mode, int maxConcurrency, ThreadFactory virtualThreads) {
+        this.name = name;
+        this.threadPrefix = "pfnet-" + name + "-";
+        this.mode = mode;
+        this.maxConcurrency = maxConcurrency;
+        this.virtualThreads = virtualThreads;
+        this.active = new AtomicInteger();
+        this.completed = new LongAdder();
+        this.failed = new LongAdder();
+        this.pinnedEvents = new LongAdder();
+        this.pinnedNanos = new LongAdder();
+        if (mode == PFNETAgent.ExecutionMode.VIRTUAL) {
+            this.permits = new Semaphore(maxConcurrency);
+            this.platformThreads = null;
+        } else {
+            this.permits = null;
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.platformThreads = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, threadPrefix + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            this.platformThreads.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Creates an executor for one subsystem.
+     *
+     * @param name           Subsystem name, used in thread names and metrics.
+     * @param mode           Requested thread kind; VIRTUAL falls back to PLATFORM when unsupported.
+     * @param maxConcurrency Maximum number of commands running at the same time.
+     */
+    static SubsystemExecutor create(String name, PFNETAgent.ExecutionMode mode, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Concurrency limit must be at least 1: " + maxConcurrency);
+        }
+        if (mode == PFNETAgent.ExecutionMode.VIRTUAL) {
+            ThreadFactory factory = virtualThreadFactory("pfnet-" + name + "-");
+            if (factory != null) {
+                SubsystemExecutor executor = new SubsystemExecutor(name, mode, maxConcurrency, factory);
+                PinningMonitor.register(executor);
+                return executor;
+            }
+            System.err.println("[WARN] Virtual threads are not available on this JVM, " + name + " uses platform threads.");
+        }
+        return new SubsystemExecutor(name, PFNETAgent.ExecutionMode.PLATFORM, maxConcurrency, null);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Subsystem " + name + " has been shut down");
+        }
+        if (platformThreads != null) {
+            platformThreads.execute(() -> run(command));
+            return;
+        }
+        virtualThreads.newThread(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                run(command);
+            } finally {
+                permits.release();
+            }
+        }).start();
+    }
+
+    /**
+     * Runs a callable on the subsystem and returns its result as a future.
+     */
+    <T> CompletableFuture<T> submit(Callable<T> callable) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                result.complete(callable.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    private void run(Runnable command) {
+        active.incrementAndGet();
+        try {
+            command.run();
+            completed.increment();
+        } catch (Throwable t) {
+            failed.increment();
+            System.err.println("[ERROR] Task failed in subsystem " + name + ": " + t);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stops accepting commands; commands already submitted still run.
+     */
+    void shutdown() {
+        shutdown = true;
+        if (platformThreads != null) {
+            platformThreads.shutdown();
+        }
+        PinningMonitor.unregister(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public PFNETAgent.ExecutionMode getMode() {
+        return mode;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return Number of times one of this subsystem's virtual threads pinned its carrier for longer
+     *         than the reporting threshold.
+     */
+    public long getPinnedEventCount() {
+        return pinnedEvents.sum();
+    }
+
+    public long getPinnedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(pinnedNanos.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "SubsystemExecutor{" +
+                "name='" + name + '\'' +
+                ", mode=" + mode +
+                ", maxConcurrency=" + maxConcurrency +
+                ", active=" + active.get() +
+                ", completed=" + completed.sum() +
+                ", failed=" + failed.sum() +
+                ", pinnedEvents=" + pinnedEvents.sum() +
+                ", pinnedMillis=" + getPinnedMillis() +
+                '}';
+    }
+
+    /**
+     * Looks up Thread.ofVirtual().name(prefix, 0).factory() without compiling against it.
+     *
+     * @return The factory, or null if this JVM has no virtual threads.
+     */
+    private static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Streams pinning events from JFR and attributes them to subsystems by thread name.
+     */
+    private static final class PinningMonitor {
+        private static final Map<String, SubsystemExecutor> SUBSYSTEMS = new ConcurrentHashMap<>();
+        private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+        static void register(SubsystemExecutor executor) {
+            SUBSYSTEMS.put(executor.threadPrefix, executor);
+            if (STARTED.compareAndSet(false, true)) {
+                start();
+            }
+        }
+
+        static void unregister(SubsystemExecutor executor) {
+            SUBSYSTEMS.remove(executor.threadPrefix, executor);
+        }
+
+        private static void start() {
+            try {
+                RecordingStream stream = new RecordingStream();
+                stream.enable("jdk.VirtualThreadPinned").withThreshold(PINNING_THRESHOLD);
+                stream.onEvent("jdk.VirtualThreadPinned", PinningMonitor::record);
+                // RecordingStream.startAsync() uses a non-daemon thread, which would keep the JVM alive
+                Thread reader = new Thread(stream::start, "pfnet-pinning-monitor");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (Throwable t) {
+                System.err.println("[WARN] Carrier pinning metrics unavailable: " + t);
+            }
+        }
+
+        private static void record(RecordedEvent event) {
+            RecordedThread thread = event.getThread();
+            String threadName = thread != null ? thread.getJavaName() : null;
+            if (threadName == null) {
+                return;
+            }
+            int end = threadName.length();
+            while (end > 0 && Character.isDigit(threadName.charAt(end - 1))) {
+                end--;
+            }
+            SubsystemExecutor executor = SUBSYSTEMS.get(threadName.substring(0, end));
+            if (executor != null) {
+                executor.pinnedEvents.increment();
+                executor.pinnedNanos.add(event.getDuration().toNanos());
+            }
+        }
+    }
+}
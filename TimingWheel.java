@@ -0,0 +1,292 @@
+package com.pfnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TimingWheel - A hashed timing wheel that fires callbacks at (roughly) their deadlines from one thread.
+ *
+ * Scheduling appends the timeout to a lock-free hand-off queue; the worker thread moves it into the slot
+ * of the tick it falls on, together with the number of full rotations still to wait. Each tick the worker
+ * runs the due entries of a single slot, so the cost per timeout is constant no matter how many are in
+ * flight, and no thread is parked per timeout. Deadlines are rounded up to the tick duration.
+ *
+ * Due callbacks are handed to the executor given at construction, so slow callbacks never delay a tick.
+ */
+class TimingWheel {
+
+    private static final int STATE_INIT = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_STOPPED = 2;
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000; // Keeps a submission burst from delaying a tick
+
+    private final String name;
+    private final Executor callbackExecutor;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts;
+    private final LongAdder activeTimeouts;
+    private final AtomicInteger state;
+    private final long startTime;
+    private volatile Thread worker;
+    private long tick; // Only touched by the worker thread
+
+    /**
+     * @param name             Name of the worker thread.
+     * @param tickMillis       Duration of one tick, which is also the timer's resolution.
+     * @param wheelSize        Number of slots; rounded up to a power of two.
+     * @param callbackExecutor Runs due callbacks.
+     */
+    TimingWheel(String name, long tickMillis, int wheelSize, Executor callbackExecutor) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive: " + tickMillis + ", " + wheelSize);
+        }
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        this.name = name;
+        this.callbackExecutor = callbackExecutor;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[Math.max(size, 1)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheel.length - 1;
+        this.pendingTimeouts = new ConcurrentLinkedQueue<>();
+        this.activeTimeouts = new LongAdder();
+        this.state = new AtomicInteger(STATE_INIT);
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Schedules a callback to run once the delay has elapsed. Starts the worker thread on first use.
+     *
+     * @param task        The callback to run once due.
+     * @param delayMillis The delay in milliseconds; zero or negative runs on the next tick.
+     * @return A handle that can cancel the callback before it runs.
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        ensureStarted();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+        activeTimeouts.increment();
+        pendingTimeouts.offer(timeout);
+        if (state.get() == STATE_STOPPED && timeout.cancel()) {
+            throw new IllegalStateException("Timer " + name + " has been stopped"); // Missed by stop()
+        }
+        return timeout;
+    }
+
+    /**
+     * @return The number of scheduled callbacks that have neither run nor been cancelled.
+     */
+    long size() {
+        return activeTimeouts.sum();
+    }
+
+    /**
+     * Stops the worker thread and cancels every callback that has not run yet, in the manner of
+     * {@link java.util.concurrent.ExecutorService#shutdownNow()}: the callbacks are returned so the
+     * caller can settle whatever was waiting on them.
+     *
+     * @return The cancelled callbacks, in no particular order.
+     */
+    List<Runnable> stop() {
+        if (state.getAndSet(STATE_STOPPED) == STATE_STARTED) {
+            Thread thread = worker;
+            LockSupport.unpark(thread);
+            if (thread != Thread.currentThread()) {
+                boolean interrupted = false;
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        // The worker has exited, so the slots can be read from here
+        List<Runnable> cancelled = new ArrayList<>();
+        for (Bucket bucket : wheel) {
+            for (Timeout timeout = bucket.head; timeout != null; timeout = timeout.next) {
+                if (timeout.cancel()) {
+                    cancelled.add(timeout.task);
+                }
+            }
+            bucket.head = bucket.tail = null;
+        }
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.cancel()) {
+                cancelled.add(timeout.task);
+            }
+        }
+        return cancelled;
+    }
+
+    private void ensureStarted() {
+        if (state.get() == STATE_INIT) {
+            synchronized (this) {
+                if (state.get() == STATE_INIT) {
+                    Thread thread = new Thread(this::runWorker, name);
+                    thread.setDaemon(true);
+                    worker = thread; // Before STARTED is published, so stop() always finds the thread
+                    if (state.compareAndSet(STATE_INIT, STATE_STARTED)) {
+                        thread.start();
+                    }
+                }
+            }
+        }
+        if (state.get() == STATE_STOPPED) {
+            throw new IllegalStateException("Timer " + name + " has been stopped");
+        }
+    }
+
+    private void runWorker() {
+        while (state.get() == STATE_STARTED) {
+            long tickDeadline = tickNanos * (tick + 1);
+            long sleepNanos = tickDeadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+            transferPendingTimeouts();
+            expireTimeouts(wheel[(int) (tick & mask)], tickDeadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts from the hand-off queue into their slots.
+     */
+    private void transferPendingTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long targetTick = Math.max(calculated, tick); // Already overdue: run on the current tick
+            wheel[(int) (targetTick & mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(Bucket bucket, long tickDeadline) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.isCancelled()) {
+                bucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= tickDeadline) {
+                bucket.remove(timeout);
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * A scheduled callback. Doubles as the node of its slot's linked list, so a pending timeout
+     * costs exactly one object on top of the callback itself.
+     */
+    static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel timer;
+        private final Runnable task;
+        private final long deadline; // Nanoseconds since the timer's start time
+        private volatile int state;
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+
+        Timeout(TimingWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the callback from running. The slot entry is unlinked the next time the worker
+         * visits it.
+         *
+         * @return True if the callback had not run or been cancelled yet.
+         */
+        boolean cancel() {
+            if (STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                timer.activeTimeouts.decrement();
+                return true;
+            }
+            return false;
+        }
+
+        boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+            timer.activeTimeouts.decrement();
+            try {
+                timer.callbackExecutor.execute(task);
+            } catch (Throwable t) {
+                System.err.println("[ERROR] Timer task could not run on " + timer.name + ": " + t);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts hashed to one slot; only the worker thread touches it.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.next = null;
+            timeout.prev = null;
+        }
+    }
+}
@@ -2,6 +2,17 @@ package com.pfnet;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * PFNET (Power Flow Network) - Central Virtual Agent
@@ -14,196 +25,3139 @@ public class PFNETAgent {
 
     // Main data structures
     private final Map<String, MachineNode> nodes; // Network nodes (connected machines)
-    private final Queue<Task> taskQueue;          // Queue of pending tasks
+    private final Shard[] shards;                // Partitions of nodes and pending tasks, one dispatcher each
     private final ExecutorService executor;      // Executor to distribute tasks
+    private final TimingWheel completionTimer;   // Fires simulated task completions at their deadline
+    private volatile SubsystemExecutor taskRunners; // Runs task completion work
+    private final RetryQueue retryQueue;         // Tasks waiting out a backoff delay after finding no node
+    private final DeadLetterStore deadLetters;   // Tasks given up on, kept on disk for replay
+    private final AsyncLogger log;               // Writes log lines in the background, see logging.* settings
+    private final Queue<Gang> pendingGangs = new ConcurrentLinkedQueue<>(); // Gangs waiting for room for all members
+    private final LabelIndex labelIndex = new LabelIndex(); // Nodes by label, for tasks that require labels
+    private final NodePool nodePool = new NodePool();       // All nodes in one array, for sampled placement
+    private volatile boolean running;
+    private final Object registrationLock = new Object();
+    private volatile ResourceVector maxNodeResources = ResourceVector.ZERO; // Per-dimension maximum over registered nodes
+    private volatile ResourceVector totalNodeResources = ResourceVector.ZERO; // Sum over registered nodes
+    private final Map<String, Integer> userWeights = new ConcurrentHashMap<>(); // Fair-share weights by username
+    private volatile AuthenticationService authentication; // Resolves session tokens to task owners
+    private volatile PlacementMode placementMode = PlacementMode.BEST_FIT;
+    private volatile int batchSize = 1;          // Tasks drained per scheduling cycle, 1 disables batching
+    private volatile PackingStrategy packingStrategy = PackingStrategy.BEST_FIT_DECREASING;
+    private volatile boolean preemptionEnabled;  // Lets urgent tasks evict lower-priority running tasks
+    private volatile boolean speculationEnabled; // Starts a second copy of tasks that overrun their execution time
+    private volatile boolean backfillEnabled;    // Holds a future slot for a task that finds no node
+    private final AtomicReference<Reservation> reservation = new AtomicReference<>(); // The held slot, null if none
+    private final LongAdder speculativeCopies = new LongAdder(); // Copies started for stragglers
+    private final LongAdder speculativeWins = new LongAdder();   // ... that finished before the original
+    private volatile AdmissionControl admission; // Bounds the pending tasks, null while unbounded
+    private final LongAdder dispatchedTasks = new LongAdder(); // Tasks placed on a node so far
+    private volatile double dispatchRate;        // Placements per second, exponentially weighted
+    private final LongAdder deadlineTasksFinished = new LongAdder(); // Tasks with a deadline that have ended
+    private final LongAdder deadlineMisses = new LongAdder();        // ... and did not complete by it
+    private final LongAdder capacityReleases = new LongAdder(); // Releases and registrations so far, for gang retries
+    private final LongAdder freedCpu = new LongAdder();         // ... and the CPU they returned or added
 
     // Management philosophy
     private static final int MAX_TASK_RETRIES = 3; // Maximum number of retries for a task
+    private static final long PRIORITY_AGING_MILLIS = 5000; // Queue wait that lifts a task by one priority level
+    private static final int BULK_BATCH_SIZE = 1024;   // Nodes or tasks inserted per step of a bulk call
+    private static final int DOMINANT_SCAN_LIMIT = 64; // Fitting nodes scored per dominant-resource placement
+    private static final int PREDICTION_SCAN_LIMIT = 16;  // Fitting nodes scored per predicted-completion placement
+    private static final int PREDICTION_VISIT_LIMIT = 64; // ... out of at most this many looked at
+    private static final int PLACEMENT_CHOICES = 2;    // Fitting nodes compared per sampled placement
+    private static final int PLACEMENT_PROBES = 16;    // Random slots looked at per sampled placement, at most
+    private static final int PLACEMENT_ATTEMPTS = 3;   // Sampled placements tried before falling back to the index
+    private static final int PREEMPTION_SCAN_LIMIT = 64; // Candidate nodes planned per preemption
+    private static final int RESERVATION_SCAN_LIMIT = 64; // Candidate nodes planned per backfill reservation
+    private static final long RESERVATION_GRACE_MILLIS = 1000; // Overrun of a reservation's start before it is planned again
+    private static final String DEFAULT_TASK_TYPE = "default"; // Type of tasks submitted without one
+    private static final double STRAGGLER_FACTOR = 1.5;  // Multiple of its execution time after which a task is a straggler
+    private static final int STEAL_WAKE_THRESHOLD = 64; // Shard backlog above which a neighbour is woken to steal
+    private static final long TIMER_TICK_MILLIS = 10;  // Resolution of the completion timer
+    private static final int TIMER_WHEEL_SIZE = 512;   // Slots per rotation of the completion timer
+    private static final long DEFAULT_RETRY_DELAY_MILLIS = 3000;      // First retry delay without configuration
+    private static final long DEFAULT_MAX_RETRY_DELAY_MILLIS = 60000; // Cap for the doubling retry delay
+    private static final long RATE_SAMPLE_MILLIS = 1000; // Interval of the dispatch rate samples
+    private static final double RATE_SMOOTHING = 0.3;    // Weight of the newest dispatch rate sample
+
+    private static final Comparator<Task> LARGEST_FIRST = Comparator.comparingInt(Task::getRequiredCapacity)
+            .thenComparingInt(task -> task.getResources().getMemory())
+            .thenComparingInt(task -> task.getResources().getIo())
+            .reversed();
 
     public PFNETAgent() {
+        this(1);
+    }
+
+    /**
+     * Creates an agent whose nodes and task queue are split into the given number of shards, each
+     * served by its own dispatcher thread. One shard per core of the agent host is a good start.
+     *
+     * @param shardCount The number of shards, at least 1.
+     */
+    public PFNETAgent(int shardCount) {
+        this(AgentConfig.loadDefault(), shardCount);
+    }
+
+    /**
+     * Creates an agent with explicit settings, as read from config.properties.
+     *
+     * @param config     Settings; recovery.reallocationDelay is the first retry delay in milliseconds,
+     *                   scheduler.fairShare selects how capacity is shared between users and
+     *                   scheduler.deadlineFirst orders queued tasks by deadline.
+     * @param shardCount The number of shards, at least 1.
+     */
+    public PFNETAgent(AgentConfig config, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+        }
+        this.log = AsyncLogger.fromConfig(config);
         this.nodes = new ConcurrentHashMap<>();
-        this.taskQueue = new ConcurrentLinkedQueue<>();
+        this.shards = new Shard[shardCount];
+        FairShareMode fairShare = config.getEnum("scheduler.fairShare", FairShareMode.class, FairShareMode.NONE);
+        boolean deadlineFirst = config.getBoolean("scheduler.deadlineFirst", false);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, createTaskQueue(fairShare, deadlineFirst));
+        }
         this.executor = Executors.newCachedThreadPool();
+        this.taskRunners = SubsystemExecutor.create("task-runner", ExecutionMode.PLATFORM, Runtime.getRuntime().availableProcessors());
+        this.completionTimer = new TimingWheel("pfnet-completion-timer", TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE,
+                this::runTaskWork);
+        this.retryQueue = new RetryQueue(completionTimer,
+                config.getLong("recovery.reallocationDelay", DEFAULT_RETRY_DELAY_MILLIS),
+                config.getLong("recovery.maxReallocationDelay", DEFAULT_MAX_RETRY_DELAY_MILLIS),
+                this::offerToShard);
+        this.deadLetters = DeadLetterStore.fromConfig(config);
+        int queueLimit = config.getInt("queue.limit", 0);
+        if (queueLimit > 0) {
+            this.admission = new AdmissionControl(queueLimit,
+                    config.getEnum("queue.admissionPolicy", AdmissionPolicy.class, AdmissionPolicy.REJECT),
+                    config.getLong("queue.offerTimeout", 1000));
+        }
     }
 
     /**
      * Registers a new machine in the network.
      */
     public void registerNode(String nodeId, int capacity) {
-        nodes.put(nodeId, new MachineNode(nodeId, capacity));
-        System.out.println("[INFO] Node registered: " + nodeId + " with capacity " + capacity);
+        registerNode(nodeId, ResourceVector.ofCpu(capacity));
     }
 
     /**
-     * Removes a node from the network.
+     * Registers a new machine in the network with CPU, memory and I/O capacity.
      */
-    public void unregisterNode(String nodeId) {
-        nodes.remove(nodeId);
-        System.out.println("[INFO] Node removed: " + nodeId);
+    public void registerNode(String nodeId, ResourceVector resources) {
+        registerNode(nodeId, resources, Collections.emptyMap());
     }
 
     /**
-     * Enqueues a new task to be distributed in the network.
+     * Registers a new machine with labels such as region=eu or gpu=a100, which tasks can require
+     * or avoid.
      */
-    public void enqueueTask(Task task) {
-        taskQueue.offer(task);
-        System.out.println("[INFO] New task added to queue: " + task);
+    public void registerNode(String nodeId, ResourceVector resources, Map<String, String> labels) {
+        MachineNode node = new MachineNode(this, nodeId, resources, labels);
+        synchronized (registrationLock) {
+            addNode(node);
+        }
+        if (labels.isEmpty()) {
+            log.info("Node registered: {} with capacity {}", nodeId, resources);
+        } else {
+            log.info("Node registered: {} with capacity {} and labels {}", nodeId, resources, labels);
+        }
     }
 
     /**
-     * Starts the agent and begins distributing tasks.
+     * Registers many machines at once, e.g. when they all reconnect after a restart. Nodes are
+     * added in batches of {@value #BULK_BATCH_SIZE} under one lock acquisition each, and the whole
+     * registration is logged in a single line.
+     *
+     * @return The number of nodes registered.
      */
-    public void start() {
-        System.out.println("[INFO] PFNET Agent started.");
-        executor.execute(() -> {
-            while (true) {
-                Task task = taskQueue.poll();
-                if (task != null) {
-                    distributeTask(task);
+    public int registerNodes(Stream<NodeRegistration> registrations) {
+        long start = System.nanoTime();
+        List<MachineNode> batch = new ArrayList<>(BULK_BATCH_SIZE);
+        int count = 0;
+        ResourceVector added = ResourceVector.ZERO;
+        try {
+            Iterator<NodeRegistration> iterator = registrations.iterator();
+            while (iterator.hasNext()) {
+                NodeRegistration registration = iterator.next();
+                batch.add(new MachineNode(this, registration.nodeId, registration.resources, registration.labels));
+                added = added.plus(registration.resources);
+                if (batch.size() == BULK_BATCH_SIZE) {
+                    addNodes(batch);
+                    count += batch.size();
+                    batch.clear();
                 }
-                try {
-                    Thread.sleep(100); // Interval to avoid overload
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    System.err.println("[ERROR] Agent interrupted: " + e.getMessage());
-                    break;
+            }
+        } finally {
+            addNodes(batch); // Nodes before an invalid registration are still registered
+            count += batch.size();
+            log.info("{} nodes registered with total capacity {} in {} ms",
+                    count, added, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return count;
+    }
+
+    /**
+     * @see #registerNodes(Stream)
+     */
+    public int registerNodes(Collection<NodeRegistration> registrations) {
+        return registerNodes(registrations.stream());
+    }
+
+    private void addNodes(List<MachineNode> batch) {
+        synchronized (registrationLock) {
+            for (MachineNode node : batch) {
+                addNode(node);
+            }
+        }
+    }
+
+    /**
+     * Adds a node to the map and indexes, replacing any node with the same id. Caller holds
+     * registrationLock.
+     */
+    private void addNode(MachineNode node) {
+        // Into the capacity index first: once the node is reachable any other way it can be
+        // reserved, and the index sync that follows must find it under its initial key.
+        ResourceVector resources = node.getTotalResources();
+        shardOf(node.getId()).capacityIndex.add(node, resources.getCpu());
+        MachineNode previous = nodes.put(node.getId(), node);
+        freedCpu.add(resources.getCpu());
+        capacityReleases.increment();
+        if (previous != null) {
+            previous.retire();
+            labelIndex.remove(previous);
+            nodePool.remove(previous);
+        }
+        labelIndex.add(node);
+        nodePool.add(node);
+        maxNodeResources = maxNodeResources.max(resources);
+        totalNodeResources = totalNodeResources.plus(resources);
+        if (previous != null) {
+            totalNodeResources = totalNodeResources.minus(previous.getTotalResources());
+        }
+    }
+
+    /**
+     * Removes a node from the network.
+     */
+    public void unregisterNode(String nodeId) {
+        synchronized (registrationLock) {
+            MachineNode node = nodes.remove(nodeId);
+            if (node != null) {
+                node.retire();
+                labelIndex.remove(node);
+                nodePool.remove(node);
+                totalNodeResources = totalNodeResources.minus(node.getTotalResources());
+                if (node.getTotalResources().sharesMaximumWith(maxNodeResources)) {
+                    maxNodeResources = nodes.values().stream()
+                            .map(MachineNode::getTotalResources)
+                            .reduce(ResourceVector.ZERO, ResourceVector::max);
                 }
             }
-        });
+        }
+        log.info("Node removed: {}", nodeId);
+    }
+
+    /**
+     * Returns a registered node by id.
+     *
+     * @return The node, or null if no node with that id is registered.
+     */
+    public MachineNode getNode(String nodeId) {
+        return nodes.get(nodeId);
     }
 
     /**
-     * Distributes a task to the most suitable available node.
+     * Enqueues a new task to be distributed in the network. Tasks are spread over the shards at
+     * random; when the chosen shard is backed up, its neighbour is woken so it can steal work.
+     * A task with unfinished {@link Task#dependsOn dependencies} is held back, while counting
+     * against the queue limit, until the last of them completes.
+     *
+     * @return A future completed with the task's outcome once it has run or been given up on. It is
+     *         completed on an agent thread, so dependent actions that do real work should use the
+     *         async variants.
+     * @throws RejectedExecutionException If the task's deadline is already out of reach, or if the
+     *                                    queue is bounded and the task was not admitted under the
+     *                                    configured {@link AdmissionPolicy}.
      */
-    private void distributeTask(Task task) {
-        Optional<MachineNode> bestNode = nodes.values().stream()
-                .filter(node -> node.getAvailableCapacity() >= task.getRequiredCapacity())
-                .min(Comparator.comparingInt(MachineNode::getAvailableCapacity));
+    public CompletableFuture<TaskOutcome> enqueueTask(Task task) {
+        if (accept(task, () -> { })) {
+            offerToShard(task);
+            log.info("New task added to queue: {}", task);
+        } else if (!task.getOutcome().isDone()) {
+            log.info("New task waiting for dependencies: {}", task);
+        }
+        return task.getOutcome();
+    }
 
-        if (bestNode.isPresent()) {
-            MachineNode node = bestNode.get();
-            boolean success = node.executeTask(task);
-            if (!success) {
-                retryTask(task);
+    /**
+     * Enqueues many tasks at once, e.g. all tasks of a large job. Ready tasks are handed to the
+     * shards in batches of {@value #BULK_BATCH_SIZE}, each shard's dispatcher is woken once per
+     * batch, and the whole submission is logged in a single line. Tasks are admitted one by one
+     * as in {@link #enqueueTask(Task)}; once the queue is full, the tasks collected so far are
+     * handed over before waiting, so they can drain. If one is rejected, the tasks before it stay
+     * enqueued and the exception is thrown.
+     *
+     * @return The outcome futures, in submission order.
+     */
+    public List<CompletableFuture<TaskOutcome>> enqueueTasks(Stream<Task> tasks) {
+        long start = System.nanoTime();
+        List<CompletableFuture<TaskOutcome>> outcomes = new ArrayList<>();
+        List<Task> ready = new ArrayList<>(BULK_BATCH_SIZE);
+        int queued = 0;
+        int waiting = 0;
+        try {
+            Iterator<Task> iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                Task task = iterator.next();
+                if (accept(task, () -> {
+                    offerAllToShards(ready); // Held-back tasks must not keep the places a wait needs
+                    ready.clear();
+                })) {
+                    ready.add(task);
+                    queued++;
+                    if (ready.size() == BULK_BATCH_SIZE) {
+                        offerAllToShards(ready);
+                        ready.clear();
+                    }
+                } else if (!task.getOutcome().isDone()) {
+                    waiting++;
+                }
+                outcomes.add(task.getOutcome());
             }
-        } else {
-            System.err.println("[WARN] No available node for task: " + task);
-            retryTask(task);
+        } finally {
+            offerAllToShards(ready); // Admitted tasks hold their place and must be queued
+            log.info("{} new tasks added to queue, {} waiting for dependencies, in {} ms",
+                    queued, waiting, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         }
+        return outcomes;
     }
 
     /**
-     * Attempts to re-execute a task or discards it if the maximum retry count is exceeded.
+     * @see #enqueueTasks(Stream)
      */
-    private void retryTask(Task task) {
-        if (task.getRetryCount() < MAX_TASK_RETRIES) {
-            task.incrementRetryCount();
-            taskQueue.offer(task);
-            System.out.println("[INFO] Re-enqueuing task: " + task);
-        } else {
-            System.err.println("[ERROR] Task discarded after multiple retries: " + task);
+    public List<CompletableFuture<TaskOutcome>> enqueueTasks(Collection<Task> tasks) {
+        return enqueueTasks(tasks.stream());
+    }
+
+    /**
+     * Checks and admits a submitted task.
+     *
+     * @param beforeWait Run when no place is free at once, before the admission policy waits for
+     *                   one or rejects the task.
+     * @return True if the task is ready to be queued; false if it waits for its dependencies or
+     *         has already ended.
+     * @throws RejectedExecutionException If the task cannot meet its deadline or is not admitted.
+     */
+    private boolean accept(Task task, Runnable beforeWait) {
+        if (task.getOutcome().isDone()) {
+            return false; // Already failed through a dependency
+        }
+        if (task.hasFailedDependency()) {
+            finishTask(task, TaskStatus.DEPENDENCY_FAILED, null);
+            return false;
+        }
+        if (!task.canMeetDeadline(System.currentTimeMillis())) {
+            throw new RejectedExecutionException("Deadline cannot be met, task needs " + task.getExecutionTime() + " ms: " + task);
+        }
+        AdmissionControl control = admission;
+        if (control != null && !control.tryAdmit(task)) {
+            beforeWait.run();
+            control.admit(task);
         }
+        task.markSubmitted();
+        if (task.parentFinished()) {
+            return true;
+        }
+        if (task.getOutcome().isDone()) {
+            taskLeftQueue(task, false); // A parent failed while the task was being admitted
+        }
+        return false;
     }
 
     /**
-     * Stops the agent and releases resources.
+     * Enqueues a task on behalf of the user holding the session token, who becomes the task's
+     * owner for fair-share scheduling.
+     *
+     * @throws SecurityException If no authentication service is set or the token is not valid.
+     * @see #enqueueTask(Task)
      */
-    public void stop() {
-        executor.shutdownNow();
-        System.out.println("[INFO] PFNET Agent stopped.");
+    public CompletableFuture<TaskOutcome> enqueueTask(String sessionToken, Task task) {
+        AuthenticationService service = authentication;
+        String username = service == null ? null : service.validateSession(sessionToken);
+        if (username == null) {
+            throw new SecurityException("Invalid session token, task not accepted: " + task);
+        }
+        task.setOwner(username);
+        return enqueueTask(task);
     }
 
     /**
-     * Represents a node/machine in the network.
+     * Sets the service that resolves session tokens passed to {@link #enqueueTask(String, Task)}.
      */
-    static class MachineNode {
-        private final String id;
-        private final int totalCapacity;
-        private int availableCapacity;
+    public void setAuthenticationService(AuthenticationService service) {
+        this.authentication = service;
+    }
 
-        public MachineNode(String id, int capacity) {
-            this.id = id;
-            this.totalCapacity = capacity;
-            this.availableCapacity = capacity;
+    /**
+     * Sets a user's fair-share weight: with {@code scheduler.fairShare} enabled, a user of weight 2
+     * gets twice the dispatch share of a user of weight 1 while both have work queued.
+     */
+    public void setUserWeight(String username, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1: " + weight);
+        }
+        userWeights.put(username, weight);
+        log.info("Fair-share weight of {} set to {}", username, weight);
+    }
+
+    /**
+     * Builds a shard's queue: earliest deadline first or priority with aging, shared out between
+     * owners when fair share is enabled.
+     */
+    private Queue<Task> createTaskQueue(FairShareMode mode, boolean deadlineFirst) {
+        Supplier<Queue<Task>> ordering = deadlineFirst
+                ? DeadlineTaskQueue::new
+                : () -> new PriorityTaskQueue(PRIORITY_AGING_MILLIS);
+        switch (mode) {
+            case WEIGHTED:
+                return new FairShareTaskQueue(ordering, Task::getRequiredCapacity, userWeights);
+            case DOMINANT_RESOURCE:
+                return new FairShareTaskQueue(ordering, this::dominantShare, userWeights);
+            default:
+                return ordering.get();
         }
+    }
+
+    /**
+     * The largest fraction of the cluster's total of any one resource that the task needs, capped
+     * at a whole share. With no nodes registered every task is charged that whole share, so costs
+     * stay on the same scale as once nodes arrive.
+     */
+    private double dominantShare(Task task) {
+        ResourceVector total = totalNodeResources;
+        return total.equals(ResourceVector.ZERO) ? 1.0 : Math.min(1.0, total.dominantShareOf(task.getResources()));
+    }
 
-        public synchronized int getAvailableCapacity() {
-            return availableCapacity;
+    /**
+     * Completes a task's outcome and settles its dependents: after a completion, each dependent
+     * whose last unfinished parent this was goes to the queue; after a failure, every task that
+     * transitively depends on it fails with {@link TaskStatus#DEPENDENCY_FAILED}. Each dependency
+     * edge is visited once, so a whole graph settles in time linear in its edges.
+     */
+    void finishTask(Task task, TaskStatus status, String nodeId) {
+        List<Task> dependents = settle(task, status, nodeId);
+        if (dependents == null || dependents.isEmpty()) {
+            return;
         }
+        if (status == TaskStatus.COMPLETED) {
+            for (Task dependent : dependents) {
+                if (dependent.parentFinished()) {
+                    offerToShard(dependent);
+                    log.info("Dependencies met, task added to queue: {}", dependent);
+                }
+            }
+            return;
+        }
+        int cancelled = 0;
+        Deque<Task> failed = new ArrayDeque<>(dependents);
+        while (!failed.isEmpty()) {
+            Task dependent = failed.pop();
+            List<Task> next = settle(dependent, TaskStatus.DEPENDENCY_FAILED, null);
+            if (next != null) {
+                taskLeftQueue(dependent, false);
+                failed.addAll(next);
+                cancelled++;
+            }
+        }
+        log.error("Task {} {}, failed {} dependent task(s)", task.getId(), status, cancelled);
+    }
 
-        public synchronized boolean executeTask(Task task) {
-            if (availableCapacity >= task.getRequiredCapacity()) {
-                availableCapacity -= task.getRequiredCapacity();
-                System.out.println("[INFO] Task " + task + " executed by node " + id);
-                // Simulate asynchronous execution
-                CompletableFuture.runAsync(() -> completeTask(task));
-                return true;
-            } else {
+    /**
+     * Ends a task once: records its deadline metrics, then completes its outcome future.
+     *
+     * @return The tasks depending on it, or null if the task had already ended.
+     */
+    private List<Task> settle(Task task, TaskStatus status, String nodeId) {
+        List<Task> dependents = task.detachDependents();
+        if (dependents == null) {
+            return null;
+        }
+        long finishedAt = System.currentTimeMillis();
+        if (task.hasDeadline()) {
+            deadlineTasksFinished.increment();
+            if (status != TaskStatus.COMPLETED || finishedAt > task.getDeadline()) {
+                deadlineMisses.increment();
+            }
+        }
+        task.complete(status, nodeId, finishedAt);
+        return dependents;
+    }
+
+    /**
+     * Submits tasks that must start together. Capacity is reserved for every member at once, on
+     * any nodes of any shard, or for none of them: a gang never holds part of its capacity while
+     * waiting for the rest. A gang that cannot be placed right away is retried by the dispatchers,
+     * ahead of single tasks, once nodes have returned or added at least the CPU it was short of,
+     * until the timeout fails all its members with {@link TaskStatus#TIMED_OUT}.
+     *
+     * @param members       The tasks of the gang; they must not have dependencies.
+     * @param timeoutMillis How long the gang may wait for room.
+     * @return A future completed with the members' outcomes, in the given order, once all have ended.
+     * @throws RejectedExecutionException If the queue is bounded and the gang was not admitted.
+     */
+    public CompletableFuture<List<TaskOutcome>> enqueueGang(List<Task> members, long timeoutMillis) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A gang needs at least one task");
+        }
+        for (Task member : members) {
+            if (member.hasDependencies()) {
+                throw new IllegalArgumentException("Gang members cannot have dependencies: " + member);
+            }
+        }
+        admitAll(members);
+        Gang gang = new Gang(new ArrayList<>(members), timeoutMillis);
+        for (Task member : gang.members) {
+            member.markSubmitted();
+        }
+        CompletableFuture<List<TaskOutcome>> outcomes = CompletableFuture
+                .allOf(gang.members.stream().map(Task::getOutcome).toArray(CompletableFuture[]::new))
+                .thenApply(done -> gang.members.stream().map(member -> member.getOutcome().join()).collect(Collectors.toList()));
+
+        ResourceVector largest = maxNodeResources;
+        Optional<Task> oversized = gang.members.stream().filter(member -> !largest.fits(member.getResources())).findFirst();
+        if (!nodes.isEmpty() && oversized.isPresent()) {
+            log.error("Gang rejected, a member exceeds the largest node capacity of {}: {}", largest, oversized.get());
+            failGang(gang, TaskStatus.REJECTED);
+            return outcomes;
+        }
+        log.info("New gang of {} tasks submitted", gang.members.size());
+        gang.timeout = completionTimer.schedule(() -> expireGang(gang), timeoutMillis);
+        if (!placeGang(gang)) {
+            pendingGangs.offer(gang);
+            placeGang(gang); // Capacity freed before the gang was visible to the dispatchers
+        }
+        return outcomes;
+    }
+
+    private void admitAll(List<Task> members) {
+        AdmissionControl control = admission;
+        if (control == null) {
+            return;
+        }
+        int admitted = 0;
+        try {
+            for (Task member : members) {
+                control.admit(member);
+                admitted++;
+            }
+        } catch (RejectedExecutionException e) {
+            for (Task member : members.subList(0, admitted)) {
+                member.releaseAdmission();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Tries each waiting gang in submission order, skipping those that enough capacity has not
+     * been freed for since they were last planned.
+     *
+     * @return True if at least one gang was placed.
+     */
+    private boolean placePendingGangs() {
+        long releases = capacityReleases.sum();
+        long freed = freedCpu.sum();
+        boolean placed = false;
+        for (Gang gang : pendingGangs) {
+            if (gang.worthPlanning(releases, freed)) {
+                placed |= placeGang(gang);
+            }
+        }
+        return placed;
+    }
+
+    /**
+     * Plans a best-fit placement of the whole gang, largest member first, against a snapshot of all
+     * nodes and commits it with {@link #commitBatch}, which rolls back every reservation if any
+     * node lost capacity in the meantime.
+     *
+     * @return True if the gang was placed and its members launched.
+     */
+    private boolean placeGang(Gang gang) {
+        List<PackingBin> bins;
+        synchronized (gang) {
+            if (gang.state != Gang.WAITING) {
                 return false;
             }
+            // Read before the snapshot, so a release racing with the plan still triggers a retry
+            gang.releasesAtPlan = capacityReleases.sum();
+            gang.freedCpuAtPlan = freedCpu.sum();
+            bins = planGang(gang);
+            if (bins == null) {
+                return false;
+            }
+            if (!commitBatch(bins)) {
+                gang.cpuShortfall = 0; // The room was there but taken meanwhile; the next release may do
+                return false;
+            }
+            gang.state = Gang.PLACED;
         }
+        gang.timeout.cancel();
+        pendingGangs.remove(gang);
+        log.info("Gang of {} tasks placed", gang.members.size());
+        for (PackingBin bin : bins) {
+            for (Task task : bin.tasks) {
+                bin.node.launch(task);
+            }
+        }
+        return true;
+    }
 
-        private synchronized void completeTask(Task task) {
-            try {
-                Thread.sleep(task.getExecutionTime()); // Simulate execution time
-                availableCapacity += task.getRequiredCapacity();
-                System.out.println("[INFO] Task completed on node " + id + ": " + task);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                System.err.println("[ERROR] Task execution interrupted: " + task);
+    /**
+     * Plans the gang against a snapshot of all nodes. When it does not fit, records how much CPU
+     * the gang needs beyond what the snapshot had free, so it is not planned again before at least
+     * that much has been released. Caller holds the gang's monitor.
+     *
+     * @return The planned bins, or null if the gang does not fit.
+     */
+    private List<PackingBin> planGang(Gang gang) {
+        List<Task> largestFirst = new ArrayList<>(gang.members);
+        largestFirst.sort(LARGEST_FIRST);
+        int smallest = largestFirst.get(largestFirst.size() - 1).getRequiredCapacity();
+        List<PackingBin> bins = new ArrayList<>();
+        TreeMap<Long, PackingBin> binsByRoom = new TreeMap<>();
+        long freeCpu = 0;
+        for (Shard shard : shards) {
+            for (MachineNode node : shard.capacityIndex.atLeast(smallest)) {
+                PackingBin bin = new PackingBin(node, node.getAvailableResources());
+                bins.add(bin);
+                binsByRoom.put(bin.key(), bin);
+                freeCpu += bin.room.getCpu();
+            }
+        }
+        for (Task task : largestFirst) {
+            PackingBin bin = bestFit(binsByRoom, task);
+            if (bin == null) {
+                long demand = 0;
+                for (Task member : largestFirst) {
+                    demand += member.getRequiredCapacity();
+                }
+                gang.cpuShortfall = Math.max(0, demand - freeCpu);
+                return null;
+            }
+            binsByRoom.remove(bin.key());
+            bin.assign(task);
+            binsByRoom.put(bin.key(), bin);
+        }
+        return bins;
+    }
+
+    private void expireGang(Gang gang) {
+        synchronized (gang) {
+            if (gang.state != Gang.WAITING) {
+                return;
             }
+            gang.state = Gang.EXPIRED;
         }
+        pendingGangs.remove(gang);
+        log.error("Gang of {} tasks not placed within {} ms", gang.members.size(), gang.timeoutMillis);
+        failGang(gang, TaskStatus.TIMED_OUT);
+    }
 
-        @Override
-        public String toString() {
-            return "MachineNode{" +
-                    "id='" + id + '\'' +
-                    ", totalCapacity=" + totalCapacity +
-                    ", availableCapacity=" + availableCapacity +
-                    '}';
+    private void failGang(Gang gang, TaskStatus status) {
+        for (Task member : gang.members) {
+            taskLeftQueue(member, false);
+            finishTask(member, status, null);
         }
     }
 
     /**
-     * Represents a task to be executed in the network.
+     * Limits the number of pending tasks, queued or waiting for a retry. A task holds its place
+     * from enqueueTask until it is placed on a node or discarded. A limit of 0 removes the bound;
+     * tasks admitted under a previous limit still count against that one.
+     *
+     * @param limit         Maximum number of pending tasks, or 0 for no limit.
+     * @param policy        What enqueueTask does when the limit is reached.
+     * @param timeoutMillis How long {@link AdmissionPolicy#TIMED} waits for a free place.
      */
-    static class Task {
-        private final String id;
-        private final int requiredCapacity;
-        private final int executionTime;
-        private int retryCount;
+    public void setQueueLimit(int limit, AdmissionPolicy policy, long timeoutMillis) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Queue limit must not be negative: " + limit);
+        }
+        admission = limit == 0 ? null : new AdmissionControl(limit, policy, timeoutMillis);
+        if (limit == 0) {
+            log.info("Task queue unbounded");
+        } else {
+            log.info("Task queue limited to {} pending tasks, policy {}", limit, policy);
+        }
+    }
 
-        public Task(String id, int requiredCapacity, int executionTime) {
-            this.id = id;
-            this.requiredCapacity = requiredCapacity;
-            this.executionTime = executionTime;
-            this.retryCount = 0;
+    /**
+     * Reports how loaded the agent's queue is, so that producers can slow down before their
+     * submissions start being rejected or blocked.
+     */
+    public Backpressure getBackpressure() {
+        long depth = retryQueue.size();
+        for (Shard shard : shards) {
+            depth += shard.taskQueue.size();
         }
+        for (Gang gang : pendingGangs) {
+            depth += gang.members.size();
+        }
+        AdmissionControl control = admission;
+        return new Backpressure(depth, control == null ? 0 : control.limit, dispatchRate);
+    }
 
-        public int getRequiredCapacity() {
-            return requiredCapacity;
+    /**
+     * Spreads the tasks over the shards round robin and wakes each shard's dispatcher once.
+     */
+    private void offerAllToShards(List<Task> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        int first = ThreadLocalRandom.current().nextInt(shards.length);
+        for (int i = 0; i < tasks.size(); i++) {
+            shards[(first + i) % shards.length].taskQueue.offer(tasks.get(i));
         }
+        for (int i = 0; i < Math.min(tasks.size(), shards.length); i++) {
+            shards[(first + i) % shards.length].signal.signal();
+        }
+    }
 
-        public int getExecutionTime() {
-            return executionTime;
+    private void offerToShard(Task task) {
+        int index = shards.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(shards.length);
+        Shard shard = shards[index];
+        shard.taskQueue.offer(task);
+        shard.signal.signal();
+        if (shards.length > 1 && shard.taskQueue.size() > STEAL_WAKE_THRESHOLD) {
+            shards[(index + 1) % shards.length].signal.signal();
         }
+    }
 
-        public int getRetryCount() {
-            return retryCount;
+    /**
+     * Re-enqueues the dead-lettered tasks matching the selector as fresh tasks and removes them from
+     * the store. Runs in the background and streams the store, so it suits large replays.
+     *
+     * @param selector Chooses the entries to replay, e.g. {@code entry -> true} for all of them.
+     * @return A future completing with the number of replayed tasks.
+     */
+    public CompletableFuture<Integer> replayDeadLetters(Predicate<DeadLetterStore.Entry> selector) {
+        return deadLetters.replay(selector, task -> {
+            AdmissionControl control = admission;
+            if (control != null) {
+                control.admitBlocking(task); // Replay waits for room instead of losing entries
+            }
+            task.markSubmitted();
+            offerToShard(task);
+        }).whenComplete((count, error) -> {
+            if (error != null) {
+                log.error("Dead-letter replay failed: {}", error.getMessage());
+            } else {
+                log.info("Replayed {} dead-lettered task(s)", count);
+            }
+        });
+    }
+
+    /**
+     * @return The store holding tasks the agent gave up on.
+     */
+    public DeadLetterStore getDeadLetters() {
+        return deadLetters;
+    }
+
+    /**
+     * Lets a task that finds no free node evict running tasks of a lower priority class. The
+     * evicted tasks go back to the queue and start over; they keep their outcome futures.
+     */
+    public void setPreemptionEnabled(boolean enabled) {
+        this.preemptionEnabled = enabled;
+        log.info("Preemption {}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * Lets the first task that finds no free node hold a future slot on the node where it can start
+     * soonest, judged by the expected end of the tasks running there, instead of waiting out retries
+     * while smaller tasks keep taking the freed capacity. Until it starts, other tasks are placed on
+     * that node only if they are expected to end before the slot begins. The task starts as soon as
+     * the node has room for it; if the slot is overrun by more than
+     * {@value #RESERVATION_GRACE_MILLIS} ms, it is planned again.
+     */
+    public void setBackfillEnabled(boolean enabled) {
+        this.backfillEnabled = enabled;
+        log.info("Backfill {}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * Watches running tasks and starts a copy on another node for any task still running
+     * {@value #STRAGGLER_FACTOR} times its expected execution time after it started. Whichever
+     * copy finishes first completes the task; the other is cancelled and its capacity released
+     * right away.
+     */
+    public void setSpeculativeExecutionEnabled(boolean enabled) {
+        this.speculationEnabled = enabled;
+        log.info("Speculative execution {}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * @return The number of speculative copies started for stragglers.
+     */
+    public long getSpeculativeCopyCount() {
+        return speculativeCopies.sum();
+    }
+
+    /**
+     * @return The number of speculative copies that finished before the original.
+     */
+    public long getSpeculativeWinCount() {
+        return speculativeWins.sum();
+    }
+
+    /**
+     * Selects how distributeTask chooses among the nodes that can hold a task.
+     */
+    public void setPlacementMode(PlacementMode mode) {
+        this.placementMode = Objects.requireNonNull(mode);
+        log.info("Placement mode set to {}", mode);
+    }
+
+    /**
+     * Selects the threads that run task completion work. In {@link ExecutionMode#VIRTUAL} every
+     * completion gets its own virtual thread, so blocking completion callbacks cost no platform
+     * thread; at most {@code maxConcurrency} of them run at once in either mode. Work already handed
+     * to the previous runners still finishes on them.
+     */
+    public void setTaskRunnerMode(ExecutionMode mode, int maxConcurrency) {
+        SubsystemExecutor previous = taskRunners;
+        taskRunners = SubsystemExecutor.create("task-runner", mode, maxConcurrency);
+        previous.shutdown();
+        log.info("Task runners set to {} threads, at most {} at once", taskRunners.getMode(), maxConcurrency);
+    }
+
+    /**
+     * Hands completion work from the timer to the current task runners. If the runners were
+     * replaced and shut down between reading them and handing the work over, the work goes to
+     * their replacement instead of being rejected; queued work of the old runners still drains.
+     */
+    private void runTaskWork(Runnable command) {
+        while (true) {
+            SubsystemExecutor runners = taskRunners;
+            try {
+                runners.execute(command);
+                return;
+            } catch (RejectedExecutionException e) {
+                if (runners == taskRunners) {
+                    throw e; // Shut down by stop(), not replaced
+                }
+            }
         }
+    }
 
-        public void incrementRetryCount() {
-            this.retryCount++;
+    /**
+     * @return The executor running task completion work, for its metrics.
+     */
+    public SubsystemExecutor getTaskRunners() {
+        return taskRunners;
+    }
+
+    /**
+     * Switches the dispatcher to batch mode: each cycle drains up to {@code batchSize} queued tasks
+     * and packs them together against a snapshot of node capacities. A size of 1 restores
+     * one-task-at-a-time dispatch.
+     *
+     * @param batchSize The maximum number of tasks packed per cycle.
+     * @param strategy  The bin-packing heuristic used for each batch.
+     */
+    public void enableBatchDispatch(int batchSize, PackingStrategy strategy) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
         }
+        this.batchSize = batchSize;
+        this.packingStrategy = Objects.requireNonNull(strategy);
+        log.info("Batch dispatch set to {} tasks per cycle using {}", batchSize, strategy);
+    }
 
-        @Override
-        public String toString() {
-            return "Task{" +
-                    "id='" + id + '\'' +
-                    ", requiredCapacity=" + requiredCapacity +
-                    ", executionTime=" + executionTime +
-                    ", retryCount=" + retryCount +
-                    '}';
+    /**
+     * Starts the agent and begins distributing tasks. Calling it again while the agent runs has no
+     * effect.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        log.info("PFNET Agent started with {} shard(s).", shards.length);
+        for (Shard shard : shards) {
+            executor.execute(() -> dispatchLoop(shard));
+        }
+        completionTimer.schedule(() -> sampleDispatchRate(dispatchedTasks.sum()), RATE_SAMPLE_MILLIS);
+    }
+
+    /**
+     * Folds the placements of the last sample interval into the dispatch rate and schedules the
+     * next sample on the completion timer.
+     */
+    private void sampleDispatchRate(long previousCount) {
+        if (!running) {
+            return;
+        }
+        long count = dispatchedTasks.sum();
+        double sample = (count - previousCount) * 1000.0 / RATE_SAMPLE_MILLIS;
+        dispatchRate = RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * dispatchRate;
+        completionTimer.schedule(() -> sampleDispatchRate(count), RATE_SAMPLE_MILLIS);
+    }
+
+    /**
+     * Called once a task leaves the pending state, either placed on a node or discarded.
+     */
+    private void taskLeftQueue(Task task, boolean placed) {
+        if (placed) {
+            dispatchedTasks.increment();
+        }
+        task.releaseAdmission();
+    }
+
+    /**
+     * Dispatches a shard's queued tasks until its queue is empty, then blocks until a task is
+     * enqueued on the shard or one of its nodes releases capacity. A task that could not be placed
+     * has been handed to the retry path, which brings it back later, so the tasks behind it are
+     * still dispatched and the loop never spins on an unchanged cluster.
+     */
+    private void dispatchLoop(Shard shard) {
+        while (running) {
+            long generation = shard.signal.generation();
+            if (!pendingGangs.isEmpty() && placePendingGangs()) {
+                continue;
+            }
+            if (batchSize > 1) {
+                if (dispatchBatch(shard, batchSize)) {
+                    continue;
+                }
+            } else {
+                Task task = pollTask(shard);
+                if (task != null) {
+                    distributeTask(shard, task);
+                    continue;
+                }
+            }
+            try {
+                shard.signal.awaitChange(generation);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (running) {
+                    log.error("Agent interrupted: {}", e.getMessage());
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Takes the next task from the shard's own queue, or steals one from another shard once the
+     * own queue is empty.
+     */
+    private Task pollTask(Shard shard) {
+        Task task = shard.taskQueue.poll();
+        for (int i = 1; task == null && i < shards.length; i++) {
+            task = shards[(shard.id + i) % shards.length].taskQueue.poll();
+        }
+        return task;
+    }
+
+    private Shard shardOf(String nodeId) {
+        return shards[Math.floorMod(nodeId.hashCode(), shards.length)];
+    }
+
+    /**
+     * Called by a node after every reservation or release. Keeps the shard's capacity index in
+     * step and, when resources were returned, moves parked retries that fit the freed room onto the
+     * shard's queue before waking its dispatcher.
+     */
+    void capacityChanged(MachineNode node, boolean released) {
+        Shard shard = shardOf(node.getId());
+        node.syncIndex(shard.capacityIndex);
+        if (released) {
+            Reservation slot = reservation.get();
+            if (slot != null && slot.node == node) {
+                startReserved(slot);
+            }
+            retryQueue.wake(node.getAvailableResources(), task -> {
+                task.markWokenEarly();
+                shard.taskQueue.offer(task);
+            });
+            shard.signal.signal();
+        }
+    }
+
+    /**
+     * Distributes a task to the most suitable available node and launches it there.
+     */
+    private void distributeTask(Shard shard, Task task) {
+        if (exceedsLargestNode(task) || missedDeadline(task)) {
+            return;
+        }
+
+        MachineNode node = reserveNode(shard, task);
+        if (node != null) {
+            node.launch(task);
+            return;
+        }
+        if (preemptionEnabled && preemptFor(shard, task)) {
+            return;
+        }
+        if (backfillEnabled && holdSlot(shard, task)) {
+            return;
+        }
+        log.warn("No available node for task: {}", task);
+        retryTask(task);
+    }
+
+    /**
+     * Reserves the task's resources on a node chosen by the placement mode, without launching it.
+     * Tasks that require labels are placed through the label index. Otherwise the dispatching
+     * shard's nodes are looked at first. In {@link PlacementMode#BEST_FIT} that is the node with
+     * the smallest available capacity that still fits the task; in
+     * {@link PlacementMode#DOMINANT_RESOURCE} it is the node the task fills most tightly on its
+     * dominant resource; in {@link PlacementMode#PREDICTED_COMPLETION} it is the node predicted to
+     * finish the task soonest. {@link PlacementMode#POWER_OF_TWO_CHOICES} samples the whole pool
+     * instead and falls back to the shards only if sampling keeps missing.
+     *
+     * When none of the shard's own nodes fit, one other shard, picked at random, is probed per
+     * attempt. The rest of the cluster is reached by idle dispatchers stealing the task or by its
+     * retries, so a placement never walks every shard.
+     *
+     * @return The node holding the reservation, or null if no node could take the task.
+     */
+    private MachineNode reserveNode(Shard shard, Task task) {
+        if (task.hasRequiredLabels()) {
+            return reserveByLabels(task);
+        }
+        if (placementMode == PlacementMode.POWER_OF_TWO_CHOICES) {
+            MachineNode node = reserveBySampling(task);
+            if (node != null) {
+                return node;
+            }
+        }
+        MachineNode node = reserveInShard(shard, task);
+        if (node == null && shards.length > 1) {
+            int offset = 1 + ThreadLocalRandom.current().nextInt(shards.length - 1);
+            node = reserveInShard(shards[(shard.id + offset) % shards.length], task);
+        }
+        return node;
+    }
+
+    /**
+     * Reserves the task's resources as {@link #distributeTask} would from the task's home shard,
+     * without launching it.
+     */
+    MachineNode reserveNode(Task task) {
+        return reserveNode(shardOf(task.getId()), task);
+    }
+
+    /**
+     * Power-of-two-choices placement: the least loaded of {@value #PLACEMENT_CHOICES} random nodes
+     * that fit the task. A lost race for the chosen node just draws a new sample.
+     */
+    private MachineNode reserveBySampling(Task task) {
+        for (int attempt = 0; attempt < PLACEMENT_ATTEMPTS; attempt++) {
+            MachineNode node = nodePool.choose(task, PLACEMENT_CHOICES, PLACEMENT_PROBES);
+            if (node == null) {
+                return null;
+            }
+            if (node.tryReserveFor(task)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Places a task that requires labels on the best-fitting node among those carrying its rarest
+     * required label, as found in the label index, instead of scanning the shards.
+     */
+    private MachineNode reserveByLabels(Task task) {
+        List<MachineNode> candidates = new ArrayList<>();
+        for (MachineNode node : labelIndex.narrowest(task.getRequiredLabels())) {
+            if (node.satisfies(task) && node.getAvailableResources().fits(task.getResources())) {
+                candidates.add(node);
+            }
+        }
+        candidates.sort(Comparator.comparingInt(MachineNode::getAvailableCapacity).thenComparingInt(MachineNode::getOrdinal));
+        for (MachineNode node : candidates) {
+            if (node.tryReserveFor(task)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private MachineNode reserveInShard(Shard shard, Task task) {
+        if (placementMode == PlacementMode.DOMINANT_RESOURCE || placementMode == PlacementMode.PREDICTED_COMPLETION) {
+            MachineNode node;
+            while ((node = placementMode == PlacementMode.DOMINANT_RESOURCE
+                    ? selectByDominantResource(shard, task)
+                    : selectByPredictedCompletion(shard, task)) != null) {
+                if (node.tryReserveFor(task)) {
+                    return node;
+                }
+            }
+        } else {
+            // Candidates come back in best-fit order; a node can lose capacity between the lookup
+            // and the reservation, in which case the next larger one is tried.
+            for (MachineNode node : shard.capacityIndex.atLeast(task.getRequiredCapacity())) {
+                if (node.tryReserveFor(task)) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Plans an eviction on up to {@value #PREEMPTION_SCAN_LIMIT} nodes large enough for the task,
+     * fullest first, and carries out the plan that throws away the least work.
+     *
+     * @return True if the task was placed.
+     */
+    private boolean preemptFor(Shard shard, Task task) {
+        if (task.getPriority().ordinal() == Priority.values().length - 1 || task.getSpreadGroup() != null) {
+            return false; // Nothing ranks below the lowest class; evictions are not planned around spread groups
+        }
+        long now = System.nanoTime();
+        PreemptionPlan best = null;
+        int scanned = 0;
+        for (int i = 0; i < shards.length && scanned < PREEMPTION_SCAN_LIMIT; i++) {
+            for (MachineNode node : shards[(shard.id + i) % shards.length].capacityIndex.atLeast(0)) {
+                if (!node.getTotalResources().fits(task.getResources()) || !node.satisfies(task)) {
+                    continue;
+                }
+                if (++scanned > PREEMPTION_SCAN_LIMIT) {
+                    break;
+                }
+                PreemptionPlan plan = node.planPreemption(task, now);
+                if (plan != null && (best == null || plan.lostWork < best.lostWork)) {
+                    best = plan;
+                }
+            }
+        }
+        return best != null && best.node.preempt(best.victims, task);
+    }
+
+    /**
+     * Straggler check, run from the completion timer: if the execution is still running and has
+     * no copy yet, starts one on the best-fit node other than its own.
+     */
+    private void speculate(Execution execution) {
+        if (!speculationEnabled || !execution.isRunning() || execution.sibling != null) {
+            return;
+        }
+        Task task = execution.task;
+        Shard home = shardOf(execution.node.getId());
+        for (int i = 0; i < shards.length; i++) {
+            for (MachineNode node : shards[(home.id + i) % shards.length].capacityIndex.atLeast(task.getRequiredCapacity())) {
+                if (node != execution.node && node.tryReserveFor(task)) {
+                    speculativeCopies.increment();
+                    node.launchCopy(execution);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves a future slot for the task on the node where it can start soonest, unless another
+     * task already holds the slot. At most {@value #RESERVATION_SCAN_LIMIT} nodes are looked at,
+     * starting with the dispatching shard: first those with enough free CPU for the task, then the
+     * others from the most free CPU down, as they are the likeliest to make room soon.
+     *
+     * @return True if the task now holds the slot and waits for it outside the queue.
+     */
+    private boolean holdSlot(Shard shard, Task task) {
+        if (reservation.get() != null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        int cpu = task.getRequiredCapacity();
+        MachineNode best = null;
+        long bestStart = Long.MAX_VALUE;
+        int visited = 0;
+        for (int i = 0; i < shards.length && visited < RESERVATION_SCAN_LIMIT; i++) {
+            CapacityIndex index = shards[(shard.id + i) % shards.length].capacityIndex;
+            for (Iterable<MachineNode> candidates : Arrays.asList(index.atLeast(cpu), index.below(cpu))) {
+                for (MachineNode node : candidates) {
+                    if (++visited > RESERVATION_SCAN_LIMIT) {
+                        break;
+                    }
+                    if (!node.getTotalResources().fits(task.getResources()) || !node.satisfies(task)) {
+                        continue;
+                    }
+                    long start = node.earliestStart(task, now);
+                    if (start < bestStart) {
+                        bestStart = start;
+                        best = node;
+                    }
+                }
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        Reservation slot = new Reservation(task, best, bestStart);
+        if (!reservation.compareAndSet(null, slot)) {
+            return false;
+        }
+        long delayMillis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, bestStart - now));
+        slot.timeout = completionTimer.schedule(() -> replanSlot(slot), delayMillis + RESERVATION_GRACE_MILLIS);
+        log.info("Task {} holds a slot on node {} starting in {} ms", task, best.getId(), delayMillis);
+        startReserved(slot); // The node may have freed up while the slot was planned
+        return true;
+    }
+
+    /**
+     * Starts the task holding the slot if its node now has room for it. Called whenever the node
+     * releases resources.
+     */
+    private void startReserved(Reservation slot) {
+        synchronized (slot) {
+            if (reservation.get() != slot || !slot.node.tryReserveFor(slot.task)) {
+                return;
+            }
+            reservation.set(null);
+        }
+        TimingWheel.Timeout timeout = slot.timeout;
+        if (timeout != null) {
+            timeout.cancel(); // Otherwise still being set; the re-plan then finds the slot gone
+        }
+        slot.node.launch(slot.task);
+    }
+
+    /**
+     * Gives up a slot whose start has been overrun, e.g. because tasks ran longer than expected or
+     * the node left, and dispatches its task again, which plans a new slot if it still finds no node.
+     */
+    private void replanSlot(Reservation slot) {
+        synchronized (slot) {
+            if (!reservation.compareAndSet(slot, null)) {
+                return;
+            }
+        }
+        log.info("Slot on node {} overrun, re-planning task {}", slot.node.getId(), slot.task);
+        offerToShard(slot.task);
+    }
+
+    /**
+     * @return True unless the node holds a slot for another task and the given task is not
+     *         expected to end on it before the slot begins, judged by the upper runtime estimate.
+     */
+    boolean allowsBackfill(MachineNode node, Task task) {
+        Reservation slot = reservation.get();
+        return slot == null || slot.node != node || slot.task == task
+                || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(node.predictedRuntimeBound(task)) <= slot.startsAt;
+    }
+
+    /**
+     * Puts a task evicted from a node back on the queue. The eviction undoes the task's dispatch,
+     * and the task takes an admission permit again like any pending task. Waiting for that permit
+     * happens off the dispatcher, which is what frees permits.
+     */
+    private void requeuePreempted(Task task) {
+        task.markPreempted();
+        dispatchedTasks.decrement();
+        AdmissionControl control = admission;
+        if (control == null) {
+            offerToShard(task);
+        } else {
+            executor.execute(() -> {
+                control.admitBlocking(task);
+                offerToShard(task);
+            });
+        }
+        log.info("Re-enqueuing preempted task: {}", task);
+    }
+
+    /**
+     * Scores the first {@value #DOMINANT_SCAN_LIMIT} nodes, in best-fit order, that fit the task in
+     * every dimension by the largest share of any single free resource the task would take, and
+     * returns the highest scoring one. Nodes with enough CPU but too little of another resource
+     * are skipped without counting, so they cannot hide a node further up that fits.
+     */
+    private MachineNode selectByDominantResource(Shard shard, Task task) {
+        ResourceVector demand = task.getResources();
+        MachineNode best = null;
+        double bestShare = -1;
+        int scored = 0;
+        for (MachineNode node : shard.capacityIndex.atLeast(demand.getCpu())) {
+            ResourceVector available = node.getAvailableResources();
+            if (!available.fits(demand) || !node.admits(task)) {
+                continue;
+            }
+            if (++scored > DOMINANT_SCAN_LIMIT) {
+                break;
+            }
+            double share = available.dominantShareOf(demand);
+            if (share > bestShare) {
+                bestShare = share;
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the node that fits the task with the shortest predicted runtime for it; a task starts
+     * as soon as it is placed, so that is also the earliest predicted completion. The candidates are
+     * the first {@value #PREDICTION_SCAN_LIMIT} fitting nodes of the shard in best-fit order, out of
+     * at most {@value #PREDICTION_VISIT_LIMIT} looked at, plus up to {@value #PLACEMENT_PROBES}
+     * random nodes of the cluster. How fast a node runs a task has nothing to do with how much
+     * capacity it has free, so the random ones give fast nodes with plenty of room a chance as well.
+     * Ties go to the best fit.
+     */
+    private MachineNode selectByPredictedCompletion(Shard shard, Task task) {
+        ResourceVector demand = task.getResources();
+        MachineNode best = null;
+        long bestRuntime = Long.MAX_VALUE;
+        int scored = 0;
+        int visited = 0;
+        for (MachineNode node : shard.capacityIndex.atLeast(demand.getCpu())) {
+            if (scored == PREDICTION_SCAN_LIMIT || visited++ == PREDICTION_VISIT_LIMIT) {
+                break;
+            }
+            if (!node.getAvailableResources().fits(demand) || !node.admits(task)) {
+                continue;
+            }
+            scored++;
+            long runtime = node.predictedRuntime(task);
+            if (runtime < bestRuntime) {
+                bestRuntime = runtime;
+                best = node;
+            }
+        }
+        for (MachineNode node : nodePool.sample(PLACEMENT_PROBES)) {
+            if (!node.getAvailableResources().fits(demand) || !node.admits(task)) {
+                continue;
+            }
+            long runtime = node.predictedRuntime(task);
+            if (runtime < bestRuntime) {
+                bestRuntime = runtime;
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Drains up to {@code limit} tasks and packs them largest-first against a snapshot of the shard's
+     * nodes that can hold at least the smallest of them. The planned reservations are committed per
+     * node in one step each; if any node lost capacity in the meantime, every reservation made for
+     * the batch is rolled back and the tasks are placed one by one instead. Tasks that do not fit
+     * the shard are offered to the other shards individually.
+     *
+     * @return True if any task was taken from the queues, placed or not.
+     */
+    private boolean dispatchBatch(Shard shard, int limit) {
+        List<Task> batch = new ArrayList<>(limit);
+        List<Task> constrained = new ArrayList<>();
+        int rejected = 0;
+        for (int drained = 0; drained < limit; drained++) {
+            Task task = pollTask(shard);
+            if (task == null) {
+                break;
+            }
+            if (exceedsLargestNode(task) || missedDeadline(task)) {
+                rejected++;
+            } else if (task.hasRequiredLabels()) {
+                constrained.add(task); // Placed through the label index, not the shard snapshot
+            } else {
+                batch.add(task);
+            }
+        }
+        for (Task task : constrained) {
+            distributeTask(shard, task);
+        }
+        if (!batch.isEmpty()) {
+            packBatch(shard, batch);
+        }
+        return rejected > 0 || !constrained.isEmpty() || !batch.isEmpty();
+    }
+
+    private void packBatch(Shard shard, List<Task> batch) {
+        batch.sort(LARGEST_FIRST);
+        int smallest = batch.stream().mapToInt(Task::getRequiredCapacity).min().getAsInt();
+
+        // First-fit scans the snapshot in registration order, best-fit keeps it sorted by room
+        List<PackingBin> bins = new ArrayList<>();
+        TreeMap<Long, PackingBin> binsByRoom = new TreeMap<>();
+        for (MachineNode node : shard.capacityIndex.atLeast(smallest)) {
+            PackingBin bin = new PackingBin(node, node.getAvailableResources());
+            bins.add(bin);
+            binsByRoom.put(bin.key(), bin);
+        }
+        if (packingStrategy == PackingStrategy.FIRST_FIT_DECREASING) {
+            bins.sort(Comparator.comparingInt(bin -> bin.node.getOrdinal()));
+        }
+
+        List<Task> unplaced = new ArrayList<>();
+        for (Task task : batch) {
+            PackingBin bin = packingStrategy == PackingStrategy.FIRST_FIT_DECREASING
+                    ? firstFit(bins, task)
+                    : bestFit(binsByRoom, task);
+            if (bin == null) {
+                unplaced.add(task);
+            } else {
+                binsByRoom.remove(bin.key());
+                bin.assign(task);
+                binsByRoom.put(bin.key(), bin);
+            }
+        }
+
+        if (!commitBatch(bins)) {
+            log.warn("Node capacity changed while packing, placing {} tasks individually", batch.size());
+            for (Task task : batch) {
+                distributeTask(shard, task);
+            }
+            return;
+        }
+        for (PackingBin bin : bins) {
+            for (Task task : bin.tasks) {
+                bin.node.launch(task);
+            }
+        }
+        for (Task task : unplaced) {
+            distributeTask(shard, task);
+        }
+    }
+
+    private static PackingBin firstFit(List<PackingBin> bins, Task task) {
+        for (PackingBin bin : bins) {
+            if (bin.accepts(task)) {
+                return bin;
+            }
+        }
+        return null;
+    }
+
+    private static PackingBin bestFit(TreeMap<Long, PackingBin> binsByRoom, Task task) {
+        for (PackingBin bin : binsByRoom.tailMap((long) task.getRequiredCapacity() << 32).values()) {
+            if (bin.accepts(task)) {
+                return bin;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reserves each bin's planned total and spread groups on its node, all or nothing.
+     */
+    private static boolean commitBatch(List<PackingBin> bins) {
+        List<PackingBin> committed = new ArrayList<>();
+        for (PackingBin bin : bins) {
+            if (bin.tasks.isEmpty()) {
+                continue;
+            }
+            if (!bin.node.claimSpreadGroups(bin.groups)) {
+                rollBack(committed);
+                return false;
+            }
+            if (!bin.node.tryReserve(bin.planned)) {
+                bin.node.releaseSpreadGroups(bin.groups);
+                rollBack(committed);
+                return false;
+            }
+            committed.add(bin);
+        }
+        return true;
+    }
+
+    private static void rollBack(List<PackingBin> committed) {
+        for (PackingBin done : committed) {
+            done.node.release(done.planned);
+            done.node.releaseSpreadGroups(done.groups);
+        }
+    }
+
+    /**
+     * Drops a task that can no longer finish before its deadline, so that it does not take
+     * capacity from tasks that still can.
+     *
+     * @return True if the task was dropped.
+     */
+    private boolean missedDeadline(Task task) {
+        if (task.canMeetDeadline(System.currentTimeMillis())) {
+            return false;
+        }
+        log.warn("Task dropped, its deadline can no longer be met: {}", task);
+        taskLeftQueue(task, false);
+        finishTask(task, TaskStatus.DEADLINE_MISSED, null);
+        return true;
+    }
+
+    /**
+     * @return The fraction of finished tasks with a deadline that did not complete by it, or 0
+     *         if no such task has finished yet.
+     */
+    public double getDeadlineMissRate() {
+        long finished = deadlineTasksFinished.sum();
+        return finished == 0 ? 0 : (double) deadlineMisses.sum() / finished;
+    }
+
+    /**
+     * @return The number of tasks that did not complete by their deadline.
+     */
+    public long getDeadlineMissCount() {
+        return deadlineMisses.sum();
+    }
+
+    /**
+     * Rejects a task that needs more of some resource than any registered node has in total.
+     *
+     * @return True if the task was rejected.
+     */
+    private boolean exceedsLargestNode(Task task) {
+        ResourceVector largest = maxNodeResources;
+        if (!nodes.isEmpty() && !largest.fits(task.getResources())) {
+            log.error("Task rejected, it exceeds the largest node capacity of {}: {}", largest, task);
+            deadLetters.record(task, "Exceeds the largest node capacity of " + largest);
+            taskLeftQueue(task, false);
+            finishTask(task, TaskStatus.REJECTED, null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parks a task for a later retry with exponential backoff, or discards it if the maximum retry
+     * count is exceeded. A task that was woken early by a capacity release and still found no node
+     * does not use up a retry; it is parked again with the same delay.
+     */
+    private void retryTask(Task task) {
+        if (task.takeWokenEarly()) {
+            long delay = retryQueue.park(task, task.getRetryCount());
+            log.info("Re-enqueuing task in {} ms after early wake: {}", delay, task);
+        } else if (task.getRetryCount() < MAX_TASK_RETRIES) {
+            task.incrementRetryCount();
+            long delay = retryQueue.park(task, task.getRetryCount());
+            log.info("Re-enqueuing task in {} ms: {}", delay, task);
+        } else {
+            log.error("Task discarded after multiple retries: {}", task);
+            deadLetters.record(task, "No node available after " + MAX_TASK_RETRIES + " retries");
+            taskLeftQueue(task, false);
+            finishTask(task, TaskStatus.DISCARDED, null);
+        }
+    }
+
+    /**
+     * Stops the agent and releases resources. Tasks that are running or parked for a retry end
+     * with {@link TaskStatus#CANCELLED}, so nobody waits on their outcomes forever.
+     */
+    public void stop() {
+        running = false;
+        executor.shutdownNow();
+        List<Task> cancelled = new ArrayList<>(retryQueue.clear());
+        for (Runnable callback : completionTimer.stop()) {
+            if (callback instanceof Execution) {
+                cancelled.add(((Execution) callback).task);
+            }
+        }
+        taskRunners.shutdown();
+        if (!cancelled.isEmpty()) {
+            log.warn("Cancelling {} unfinished task(s) on shutdown", cancelled.size());
+        }
+        for (Task task : cancelled) {
+            finishTask(task, TaskStatus.CANCELLED, null);
+        }
+        deadLetters.close();
+        log.info("PFNET Agent stopped.");
+        log.close();
+    }
+
+    /**
+     * Represents a node/machine in the network.
+     */
+    static class MachineNode {
+        private static final AtomicInteger NEXT_ORDINAL = new AtomicInteger();
+
+        // Available resources live in one word, 21 bits per dimension: cpu | memory | io
+        private static final int FIELD_BITS = 21;
+        private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+        static final int MAX_RESOURCE = (int) FIELD_MASK;
+
+        private final PFNETAgent agent;
+        private final String id;
+        private final int ordinal; // Registration order, breaks ties in the capacity index
+        private final ResourceVector totalResources;
+        private final Map<String, String> labels;
+        private final AtomicLong available; // Packed available resources, updated by CAS only
+        private final Set<String> spreadGroups = ConcurrentHashMap.newKeySet(); // Groups with a task running here
+        private final Map<String, RuntimeEstimate> runtimes = new ConcurrentHashMap<>(); // Observed runtimes by task type
+        private final RuntimeEstimate allRuntimes = new RuntimeEstimate(); // ... and over all task types
+        private final Set<Execution> running = ConcurrentHashMap.newKeySet(); // Executions holding resources here
+        private volatile double slowdown = 1.0; // Actual over expected execution time of tasks on this node
+        private final AtomicInteger indexWork = new AtomicInteger(); // Pending index syncs, owned by whoever raised it from 0
+        private int indexedCpu;             // CPU value the node is indexed under, touched only by the indexWork owner
+        private boolean indexed = true;
+        private volatile boolean retired;
+
+        public MachineNode(PFNETAgent agent, String id, int capacity) {
+            this(agent, id, ResourceVector.ofCpu(capacity));
+        }
+
+        public MachineNode(PFNETAgent agent, String id, ResourceVector resources) {
+            this(agent, id, resources, Collections.emptyMap());
+        }
+
+        public MachineNode(PFNETAgent agent, String id, ResourceVector resources, Map<String, String> labels) {
+            if (resources.getCpu() > MAX_RESOURCE || resources.getMemory() > MAX_RESOURCE || resources.getIo() > MAX_RESOURCE) {
+                throw new IllegalArgumentException("Node resources exceed " + MAX_RESOURCE + " per dimension: " + resources);
+            }
+            this.agent = agent;
+            this.id = id;
+            this.ordinal = NEXT_ORDINAL.getAndIncrement();
+            this.totalResources = resources;
+            this.labels = Collections.unmodifiableMap(new HashMap<>(labels));
+            this.available = new AtomicLong(pack(resources));
+            this.indexedCpu = resources.getCpu();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        int getOrdinal() {
+            return ordinal;
+        }
+
+        public int getTotalCapacity() {
+            return totalResources.getCpu();
+        }
+
+        public ResourceVector getTotalResources() {
+            return totalResources;
+        }
+
+        public Map<String, String> getLabels() {
+            return labels;
+        }
+
+        public int getAvailableCapacity() {
+            return cpuOf(available.get());
+        }
+
+        public ResourceVector getAvailableResources() {
+            return unpack(available.get());
+        }
+
+        public boolean executeTask(Task task) {
+            if (tryReserveFor(task)) {
+                launch(task);
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        /**
+         * Takes resources away from the node if it has enough left in every dimension. The check and
+         * the subtraction happen in a single compare-and-set, so the node is never over-committed.
+         *
+         * @return True if the resources were reserved.
+         */
+        boolean tryReserve(ResourceVector demand) {
+            while (!retired) {
+                long current = available.get();
+                if (!fits(current, demand)) {
+                    return false;
+                }
+                // Every field is at least its demand, so the subtraction never borrows across fields
+                if (available.compareAndSet(current, current - pack(demand))) {
+                    agent.capacityChanged(this, false);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return True if the node carries every label the task requires and none it avoids.
+         */
+        boolean satisfies(Task task) {
+            for (Map.Entry<String, String> label : task.getRequiredLabels().entrySet()) {
+                if (!label.getValue().equals(labels.get(label.getKey()))) {
+                    return false;
+                }
+            }
+            for (Map.Entry<String, String> label : task.getAvoidedLabels().entrySet()) {
+                if (label.getValue().equals(labels.get(label.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return True if the node is still registered, satisfies the task's labels, runs no task of
+         *         its spread group and holds no slot the task would overrun; the group can still be
+         *         taken before the reservation.
+         */
+        boolean admits(Task task) {
+            String group = task.getSpreadGroup();
+            return !retired && satisfies(task) && (group == null || !spreadGroups.contains(group)) && agent.allowsBackfill(this, task);
+        }
+
+        /**
+         * Reserves the task's resources together with its spread group, if it has one, provided the
+         * node satisfies the task's labels and backfill allows it here. The group is claimed first
+         * and given back if the resources are not available.
+         *
+         * @return True if both were reserved.
+         */
+        boolean tryReserveFor(Task task) {
+            String group = task.getSpreadGroup();
+            if (!satisfies(task) || !agent.allowsBackfill(this, task) || (group != null && !spreadGroups.add(group))) {
+                return false;
+            }
+            if (tryReserve(task.getResources())) {
+                return true;
+            }
+            if (group != null) {
+                spreadGroups.remove(group);
+            }
+            return false;
+        }
+
+        /**
+         * Claims all of the given spread groups, or none of them.
+         */
+        boolean claimSpreadGroups(Set<String> groups) {
+            List<String> claimed = new ArrayList<>(groups.size());
+            for (String group : groups) {
+                if (!spreadGroups.add(group)) {
+                    spreadGroups.removeAll(claimed);
+                    return false;
+                }
+                claimed.add(group);
+            }
+            return true;
+        }
+
+        void releaseSpreadGroups(Set<String> groups) {
+            spreadGroups.removeAll(groups);
+        }
+
+        /**
+         * Returns previously reserved resources to the node.
+         */
+        void release(ResourceVector demand) {
+            available.addAndGet(pack(demand));
+            agent.freedCpu.add(demand.getCpu());
+            agent.capacityReleases.increment();
+            agent.capacityChanged(this, true);
+        }
+
+        /**
+         * Starts a task whose capacity has already been reserved on this node. Execution is
+         * simulated: the completion fires from the agent's timing wheel once the task's execution
+         * time has elapsed.
+         */
+        void launch(Task task) {
+            agent.taskLeftQueue(task, true);
+            task.markDispatched();
+            agent.log.info("Task {} executed by node {}", task, id);
+            task.copyStarted();
+            start(new Execution(this, task, false));
+        }
+
+        /**
+         * Starts a speculative copy of a straggling execution; the capacity has already been
+         * reserved on this node. The two executions are linked before the copy is started, so
+         * whichever of them completes first always finds and aborts the other. If the original
+         * ended before the copy could join it, the reservation is given back instead.
+         */
+        void launchCopy(Execution original) {
+            Task task = original.task;
+            if (!task.joinRunningCopy()) {
+                releaseSpreadGroup(task);
+                release(task.getResources());
+                return;
+            }
+            Execution copy = new Execution(this, task, true);
+            copy.sibling = original;
+            original.sibling = copy;
+            agent.log.info("Straggler on node {}, speculative copy started on node {}: {}", original.node.getId(), id, task);
+            start(copy);
+            if (!copy.isRunning()) {
+                copy.cancelTimers(); // Aborted while it was being started; undo what the abort missed
+                running.remove(copy);
+            } else if (original.isFinished()) {
+                abort(copy); // The original finished before it could see the copy
+            }
+        }
+
+        private void start(Execution execution) {
+            Task task = execution.task;
+            running.add(execution); // Before scheduling, so a fast completion always finds it
+            execution.timeout = agent.completionTimer.schedule(execution, Math.round(task.getExecutionTime() * slowdown));
+            if (agent.speculationEnabled && !execution.speculative) {
+                execution.stragglerCheck = agent.completionTimer.schedule(() -> agent.speculate(execution),
+                        Math.round(task.getExecutionTime() * STRAGGLER_FACTOR));
+            }
+        }
+
+        /**
+         * Completes the task from one of its executions. With a speculative sibling, the execution
+         * completes the task only if it also takes the sibling out of the running state; when both
+         * finished at the same moment, the original wins and the copy backs off, so the task
+         * completes exactly once.
+         */
+        private void completeTask(Execution execution) {
+            if (!execution.finish()) {
+                return; // Preempted or lost to its copy; the resources have been handed on
+            }
+            Task task = execution.task;
+            Execution sibling = execution.sibling;
+            if (sibling != null && !sibling.node.abort(sibling) && execution.speculative && sibling.isFinished()) {
+                stop(execution);
+                recordRuntime(task, System.nanoTime() - execution.startedAt, false);
+                task.copyEnded();
+                return; // The original finished at the same time and completes the task
+            }
+            stop(execution);
+            recordRuntime(task, System.nanoTime() - execution.startedAt, true);
+            if (sibling != null && execution.speculative) {
+                agent.speculativeWins.increment();
+            }
+            task.copyEnded();
+            agent.log.info("Task completed on node {}: {}", id, task);
+            agent.finishTask(task, TaskStatus.COMPLETED, id);
+        }
+
+        /**
+         * Cancels the copy of a task whose other copy has finished and releases its resources.
+         *
+         * @return False if the execution was no longer running.
+         */
+        private boolean abort(Execution execution) {
+            if (!execution.abort()) {
+                return false;
+            }
+            stop(execution);
+            recordRuntime(execution.task, System.nanoTime() - execution.startedAt, false);
+            execution.task.copyEnded();
+            agent.log.info("Copy of task {} cancelled on node {}, the other copy finished first", execution.task.getId(), id);
+            return true;
+        }
+
+        /**
+         * Takes a finished or aborted execution off the node and returns its resources.
+         */
+        private void stop(Execution execution) {
+            execution.cancelTimers();
+            running.remove(execution);
+            releaseSpreadGroup(execution.task);
+            release(execution.task.getResources());
+        }
+
+        private void releaseSpreadGroup(Task task) {
+            if (task.getSpreadGroup() != null) {
+                spreadGroups.remove(task.getSpreadGroup());
+            }
+        }
+
+        /**
+         * Predicts how long the task will run on this node from the runtimes observed here: the
+         * task's declared execution time scaled by the mean ratio seen for its type, or for all
+         * tasks on the node while its type has not run here yet.
+         *
+         * @return The predicted runtime in milliseconds.
+         */
+        public long predictedRuntime(Task task) {
+            return Math.round(task.getExecutionTime() * estimateFor(task).getMean());
+        }
+
+        /**
+         * @return A runtime the task stays under in about {@value RuntimeEstimate#QUANTILE} of
+         *         cases on this node, in milliseconds.
+         */
+        long predictedRuntimeBound(Task task) {
+            RuntimeEstimate estimate = estimateFor(task);
+            return Math.round(task.getExecutionTime() * Math.max(estimate.getMean(), estimate.getQuantile()));
+        }
+
+        private RuntimeEstimate estimateFor(Task task) {
+            RuntimeEstimate byType = runtimes.get(task.getType());
+            return byType != null && byType.getSamples() > 0 ? byType : allRuntimes;
+        }
+
+        /**
+         * Records how long a completed task took here or, for a copy cancelled because the other
+         * one finished first, how long it had run by then: a lower bound, since a node slow enough
+         * to lose the race is exactly the one whose runtimes must not go unobserved.
+         */
+        private void recordRuntime(Task task, long runtimeNanos, boolean finished) {
+            if (task.getExecutionTime() <= 0) {
+                return;
+            }
+            double ratio = runtimeNanos / (task.getExecutionTime() * 1e6);
+            RuntimeEstimate byType = runtimes.computeIfAbsent(task.getType(), type -> new RuntimeEstimate());
+            if (finished) {
+                byType.record(ratio);
+                allRuntimes.record(ratio);
+            } else {
+                byType.recordAtLeast(ratio);
+                allRuntimes.recordAtLeast(ratio);
+            }
+        }
+
+        /**
+         * @return The runtime estimate for tasks of the given type on this node, or null if none ran here.
+         */
+        RuntimeEstimate getRuntimeEstimate(String type) {
+            return runtimes.get(type);
+        }
+
+        /**
+         * Works out when the task could start here if nothing else were placed: at once if it
+         * fits now, otherwise at the expected end of the running task whose release, added to what
+         * the earlier ending ones release, makes it fit.
+         *
+         * @return The start time in System.nanoTime() terms, or Long.MAX_VALUE if it never fits.
+         */
+        long earliestStart(Task task, long now) {
+            ResourceVector demand = task.getResources();
+            ResourceVector room = getAvailableResources();
+            if (room.fits(demand)) {
+                return now;
+            }
+            if (retired) {
+                return Long.MAX_VALUE;
+            }
+            List<Execution> ending = new ArrayList<>(running);
+            ending.sort(Comparator.comparingLong(Execution::expectedEnd));
+            for (Execution execution : ending) {
+                room = room.plus(execution.task.getResources());
+                if (room.fits(demand)) {
+                    return Math.max(now, execution.expectedEnd());
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Sets how much slower than expected this node runs tasks, e.g. 3.0 for a volunteer
+         * machine that takes three times the expected execution time.
+         */
+        public void setSlowdown(double slowdown) {
+            if (!(slowdown > 0)) {
+                throw new IllegalArgumentException("Slowdown must be positive: " + slowdown);
+            }
+            this.slowdown = slowdown;
+        }
+
+        public double getSlowdown() {
+            return slowdown;
+        }
+
+        /**
+         * Picks running tasks of a lower priority class than the given task whose eviction would
+         * let it fit, cheapest first, where the cost of a victim is the work it would lose (CPU
+         * times elapsed milliseconds). Victims that free nothing the task is still short of are
+         * skipped. Sorting the candidates keeps this at O(r log r) for r running tasks.
+         *
+         * @return The plan, or null if evicting every eligible task would not be enough.
+         */
+        PreemptionPlan planPreemption(Task task, long now) {
+            ResourceVector demand = task.getResources();
+            ResourceVector room = getAvailableResources();
+            List<Execution> candidates = new ArrayList<>();
+            for (Execution execution : running) {
+                if (execution.task.getPriority().compareTo(task.getPriority()) > 0) {
+                    candidates.add(execution);
+                }
+            }
+            candidates.sort(Comparator.comparingLong(execution -> execution.lostWork(now)));
+            List<Execution> victims = new ArrayList<>();
+            long lostWork = 0;
+            for (Execution execution : candidates) {
+                if (room.fits(demand)) {
+                    break;
+                }
+                ResourceVector freed = execution.task.getResources();
+                if (!demand.minusClamped(room).sharesAnyWith(freed)) {
+                    continue;
+                }
+                victims.add(execution);
+                room = room.plus(freed);
+                lostWork += execution.lostWork(now);
+            }
+            return room.fits(demand) ? new PreemptionPlan(this, victims, lostWork) : null;
+        }
+
+        /**
+         * Evicts the victims and hands their resources straight to the task. The part of the task's
+         * demand the victims do not cover is reserved from the free pool first, so a plan that can no
+         * longer be committed fails before anything is evicted; only what the task does not need is
+         * released afterwards, so no other dispatcher can take the freed capacity first. A victim
+         * that completed in the meantime has released its resources normally, and its share is
+         * taken from the pool instead; only if that is gone too does the preemption fail after
+         * evicting.
+         *
+         * @return True if the task was placed. Evicted tasks are requeued either way; none are
+         *         evicted when the free pool no longer covers the shortfall.
+         */
+        boolean preempt(List<Execution> victims, Task task) {
+            ResourceVector demand = task.getResources();
+            ResourceVector covered = ResourceVector.ZERO;
+            for (Execution victim : victims) {
+                covered = covered.plus(victim.task.getResources());
+            }
+            ResourceVector shortfall = demand.minusClamped(covered);
+            if (!shortfall.equals(ResourceVector.ZERO) && !tryReserve(shortfall)) {
+                return false; // The room outside the victims is gone; leave them running
+            }
+            ResourceVector held = shortfall;
+            List<Task> evicted = new ArrayList<>(victims.size());
+            for (Execution victim : victims) {
+                if (victim.preempt()) {
+                    victim.cancelTimers();
+                    running.remove(victim);
+                    releaseSpreadGroup(victim.task);
+                    held = held.plus(victim.task.getResources());
+                    if (victim.task.copyEnded()) {
+                        evicted.add(victim.task); // Requeue only if no other copy is still running
+                    }
+                }
+            }
+            ResourceVector missing = demand.minusClamped(held);
+            boolean placed = missing.equals(ResourceVector.ZERO) || tryReserve(missing);
+            if (placed) {
+                held = held.plus(missing);
+            }
+            ResourceVector surplus = placed ? held.minusClamped(demand) : held;
+            if (!surplus.equals(ResourceVector.ZERO)) {
+                release(surplus);
+            }
+            if (placed) {
+                agent.log.info("Preempted {} task(s) on node {} for task {}", evicted.size(), id, task);
+                launch(task);
+            }
+            for (Task victim : evicted) {
+                agent.requeuePreempted(victim);
+            }
+            return placed;
+        }
+
+        /**
+         * Moves the node to the index key matching its current CPU capacity, or drops it from the
+         * index once retired. Writers never wait for each other: a thread that finds a sync already
+         * in progress only records that another pass is needed, and the owner keeps re-reading the
+         * capacity word until no request is left, so the node always ends up under its latest value.
+         */
+        void syncIndex(CapacityIndex index) {
+            if (indexWork.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (retired) {
+                    if (indexed) {
+                        index.remove(this, indexedCpu);
+                        indexed = false;
+                    }
+                } else {
+                    int cpu = getAvailableCapacity();
+                    if (cpu != indexedCpu) {
+                        index.update(this, indexedCpu, cpu);
+                        indexedCpu = cpu;
+                    }
+                }
+                missed = indexWork.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        boolean isRetired() {
+            return retired;
+        }
+
+        /**
+         * Takes the node out of the capacity index; it accepts no further tasks.
+         */
+        void retire() {
+            retired = true;
+            syncIndex(agent.shardOf(id).capacityIndex);
+        }
+
+        private static long pack(ResourceVector resources) {
+            return ((long) resources.getCpu() << (2 * FIELD_BITS))
+                    | ((long) resources.getMemory() << FIELD_BITS)
+                    | resources.getIo();
+        }
+
+        private static ResourceVector unpack(long word) {
+            return new ResourceVector(cpuOf(word), (int) ((word >>> FIELD_BITS) & FIELD_MASK), (int) (word & FIELD_MASK));
+        }
+
+        private static int cpuOf(long word) {
+            return (int) ((word >>> (2 * FIELD_BITS)) & FIELD_MASK);
+        }
+
+        private static boolean fits(long word, ResourceVector demand) {
+            return cpuOf(word) >= demand.getCpu()
+                    && ((word >>> FIELD_BITS) & FIELD_MASK) >= demand.getMemory()
+                    && (word & FIELD_MASK) >= demand.getIo();
+        }
+
+        @Override
+        public String toString() {
+            return "MachineNode{" +
+                    "id='" + id + '\'' +
+                    ", totalResources=" + totalResources +
+                    ", availableResources=" + getAvailableResources() +
+                    '}';
+        }
+    }
+
+    /**
+     * One run of a task on a node. It is its own completion callback, so an in-flight task costs one
+     * Execution plus one timer entry. Completion, preemption and cancellation in favour of a
+     * speculative sibling race for the execution through a single compare-and-set on its state;
+     * whichever wins owns the reserved resources.
+     */
+    static final class Execution implements Runnable {
+        private static final int RUNNING = 0;
+        private static final int FINISHED = 1;
+        private static final int PREEMPTED = 2;
+        private static final int ABORTED = 3;
+        private static final AtomicIntegerFieldUpdater<Execution> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Execution.class, "state");
+
+        private final MachineNode node;
+        private final Task task;
+        private final boolean speculative; // Copy started for a straggler
+        private final long startedAt;      // System.nanoTime()
+        private final long runtimeMillis;  // Predicted running time on the node
+        private volatile TimingWheel.Timeout timeout;
+        private volatile TimingWheel.Timeout stragglerCheck;
+        private volatile Execution sibling; // The other copy of the task, if one was started
+        private volatile int state;
+
+        Execution(MachineNode node, Task task, boolean speculative) {
+            this.node = node;
+            this.task = task;
+            this.speculative = speculative;
+            this.startedAt = System.nanoTime();
+            this.runtimeMillis = node.predictedRuntime(task);
+        }
+
+        /**
+         * @return When the execution is expected to end, in System.nanoTime() terms.
+         */
+        long expectedEnd() {
+            return startedAt + TimeUnit.MILLISECONDS.toNanos(runtimeMillis);
+        }
+
+        boolean isRunning() {
+            return state == RUNNING;
+        }
+
+        boolean isFinished() {
+            return state == FINISHED;
+        }
+
+        boolean abort() {
+            return STATE.compareAndSet(this, RUNNING, ABORTED);
+        }
+
+        void cancelTimers() {
+            TimingWheel.Timeout completion = timeout;
+            if (completion != null) {
+                completion.cancel();
+            }
+            TimingWheel.Timeout check = stragglerCheck;
+            if (check != null) {
+                check.cancel();
+            }
+        }
+
+        boolean finish() {
+            return STATE.compareAndSet(this, RUNNING, FINISHED);
+        }
+
+        boolean preempt() {
+            return STATE.compareAndSet(this, RUNNING, PREEMPTED);
+        }
+
+        /**
+         * @return The work lost if the execution were evicted now, in CPU-milliseconds.
+         */
+        long lostWork(long now) {
+            return TimeUnit.NANOSECONDS.toMillis(now - startedAt) * task.getRequiredCapacity();
+        }
+
+        @Override
+        public void run() {
+            node.completeTask(this);
+        }
+    }
+
+    /**
+     * A future slot on a node held by a task that found no node, for backfill scheduling. Starting
+     * the task and re-planning the slot synchronize on it.
+     */
+    private static final class Reservation {
+        private final Task task;
+        private final MachineNode node;
+        private final long startsAt; // Expected start, System.nanoTime()
+        private volatile TimingWheel.Timeout timeout;
+
+        Reservation(Task task, MachineNode node, long startsAt) {
+            this.task = task;
+            this.node = node;
+            this.startsAt = startsAt;
+        }
+    }
+
+    /**
+     * Running tasks chosen for eviction on one node, with the work their eviction throws away.
+     */
+    private static final class PreemptionPlan {
+        private final MachineNode node;
+        private final List<Execution> victims;
+        private final long lostWork;
+
+        PreemptionPlan(MachineNode node, List<Execution> victims, long lostWork) {
+            this.node = node;
+            this.victims = victims;
+            this.lostWork = lostWork;
+        }
+    }
+
+    /**
+     * Priority classes for tasks, most urgent first. Queued tasks age towards higher classes so
+     * that bulk work still makes progress behind a steady stream of interactive jobs.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    /**
+     * Represents a task to be executed in the network.
+     */
+    static class Task {
+        private final String id;
+        private final ResourceVector resources;
+        private final int executionTime;
+        private final Priority priority;
+        private int retryCount;
+        private boolean wokenEarly;       // Left the retry queue because capacity freed up, not on its timer
+        private int preemptions;          // Times the task was evicted by a more urgent one
+        private String owner;             // Username the task runs for, null if submitted without a session
+        private long deadline;            // Epoch milliseconds by which the task should complete, 0 for none
+        private long queueSequence;       // Arrival order in a deadline queue
+        private Map<String, String> requiredLabels = Collections.emptyMap(); // Labels a node must carry
+        private Map<String, String> avoidedLabels = Collections.emptyMap();  // Labels a node must not carry
+        private String spreadGroup;       // At most one task of the group runs on any node, null for none
+        private String type = DEFAULT_TASK_TYPE; // Kind of work, runtimes are learned per type and node
+        private final AtomicInteger runningCopies = new AtomicInteger(); // Executions of the task holding resources
+        private AdmissionControl admission; // Holds a place in this bound until the task leaves the queue
+        private volatile long enqueuedAt; // System.nanoTime() of the first enqueue, 0 until queued
+        private long submittedAt;         // Wall-clock times in epoch milliseconds, 0 until reached
+        private long dispatchedAt;
+        private final CompletableFuture<TaskOutcome> outcome = new CompletableFuture<>();
+        private final AtomicInteger unfinishedParents = new AtomicInteger(1); // Plus one until the task is enqueued
+        private List<Task> dependents = new ArrayList<>(0); // Guarded by this, null once the task has finished
+        private volatile boolean failedDependency;          // A parent had already failed when declared
+
+        public Task(String id, int requiredCapacity, int executionTime) {
+            this(id, requiredCapacity, executionTime, Priority.NORMAL);
+        }
+
+        public Task(String id, int requiredCapacity, int executionTime, Priority priority) {
+            this(id, ResourceVector.ofCpu(requiredCapacity), executionTime, priority);
+        }
+
+        public Task(String id, ResourceVector resources, int executionTime, Priority priority) {
+            this.id = id;
+            this.resources = Objects.requireNonNull(resources);
+            this.executionTime = executionTime;
+            this.priority = Objects.requireNonNull(priority);
+            this.retryCount = 0;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getRequiredCapacity() {
+            return resources.getCpu();
+        }
+
+        public ResourceVector getResources() {
+            return resources;
+        }
+
+        public int getExecutionTime() {
+            return executionTime;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public int getRetryCount() {
+            return retryCount;
+        }
+
+        /**
+         * @return The future completed once the task has run or been given up on.
+         */
+        public CompletableFuture<TaskOutcome> getOutcome() {
+            return outcome;
+        }
+
+        void markSubmitted() {
+            submittedAt = System.currentTimeMillis();
+        }
+
+        void markDispatched() {
+            dispatchedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Makes this task wait for the given tasks to complete before it is queued. Must be called
+         * before this task is enqueued; parents may be enqueued before or after it. If a parent does
+         * not complete, this task fails as well. Cycles are not detected and never become ready.
+         *
+         * @return This task, for chaining.
+         */
+        public Task dependsOn(Task... parents) {
+            if (submittedAt != 0) {
+                throw new IllegalStateException("Dependencies must be declared before the task is enqueued: " + this);
+            }
+            for (Task parent : parents) {
+                synchronized (parent) {
+                    if (parent.dependents != null) {
+                        parent.dependents.add(this);
+                        unfinishedParents.incrementAndGet();
+                    } else if (parent.outcome.join().getStatus() != TaskStatus.COMPLETED) {
+                        failedDependency = true;
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Restricts the task to nodes carrying the given label (affinity).
+         *
+         * @return This task, for chaining.
+         */
+        public Task requireLabel(String key, String value) {
+            requiredLabels = withLabel(requiredLabels, key, value);
+            return this;
+        }
+
+        /**
+         * Keeps the task off nodes carrying the given label (anti-affinity).
+         *
+         * @return This task, for chaining.
+         */
+        public Task avoidLabel(String key, String value) {
+            avoidedLabels = withLabel(avoidedLabels, key, value);
+            return this;
+        }
+
+        /**
+         * Places the task only on nodes not already running a task of the same group, so that
+         * replicas of a service end up on different machines.
+         *
+         * @return This task, for chaining.
+         */
+        public Task spreadAcross(String group) {
+            this.spreadGroup = Objects.requireNonNull(group);
+            return this;
+        }
+
+        private static Map<String, String> withLabel(Map<String, String> labels, String key, String value) {
+            Map<String, String> copy = new HashMap<>(labels);
+            copy.put(Objects.requireNonNull(key), Objects.requireNonNull(value));
+            return Collections.unmodifiableMap(copy);
+        }
+
+        public Map<String, String> getRequiredLabels() {
+            return requiredLabels;
+        }
+
+        public Map<String, String> getAvoidedLabels() {
+            return avoidedLabels;
+        }
+
+        public String getSpreadGroup() {
+            return spreadGroup;
+        }
+
+        /**
+         * Sets the kind of work the task does, such as render or train. Runtimes are learned per
+         * type and node, so tasks of one type should have similar actual-to-declared runtimes.
+         *
+         * @return This task, for chaining.
+         */
+        public Task ofType(String type) {
+            this.type = Objects.requireNonNull(type);
+            return this;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        boolean hasRequiredLabels() {
+            return !requiredLabels.isEmpty();
+        }
+
+        boolean hasDependencies() {
+            return unfinishedParents.get() != 1 || failedDependency;
+        }
+
+        boolean hasFailedDependency() {
+            return failedDependency;
+        }
+
+        /**
+         * Counts down one unfinished parent, or the enqueue itself.
+         *
+         * @return True if the task has just become ready to queue.
+         */
+        boolean parentFinished() {
+            return unfinishedParents.decrementAndGet() == 0;
+        }
+
+        /**
+         * Marks the task as ended, so that no further dependents can be added; only the first call
+         * succeeds and must be followed by {@link #complete}.
+         *
+         * @return The tasks depending on this one, or null if the task had already ended.
+         */
+        synchronized List<Task> detachDependents() {
+            List<Task> waiting = dependents;
+            dependents = null;
+            return waiting;
+        }
+
+        /**
+         * Completes the outcome future.
+         *
+         * @param nodeId The node that ran the task, or null if it never ran.
+         */
+        void complete(TaskStatus status, String nodeId, long finishedAt) {
+            outcome.complete(new TaskOutcome(id, status, nodeId, retryCount, submittedAt, dispatchedAt, finishedAt));
+        }
+
+        long getEnqueuedAt() {
+            return enqueuedAt;
+        }
+
+        /**
+         * Records when the task first entered a queue. Retries keep the original time so that a
+         * requeued task does not lose the age it has already built up.
+         */
+        void markEnqueued(long nanoTime) {
+            if (enqueuedAt == 0L) {
+                enqueuedAt = nanoTime;
+            }
+        }
+
+        public void incrementRetryCount() {
+            this.retryCount++;
+        }
+
+        synchronized void admitted(AdmissionControl control) {
+            admission = control;
+        }
+
+        synchronized void releaseAdmission() {
+            AdmissionControl control = admission;
+            if (control != null) {
+                admission = null;
+                control.release();
+            }
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * Sets the time by which the task should have completed. With scheduler.deadlineFirst the
+         * queue serves the earliest deadline first.
+         *
+         * @param deadline Epoch milliseconds.
+         * @return This task, for chaining.
+         */
+        public Task withDeadline(long deadline) {
+            if (deadline <= 0) {
+                throw new IllegalArgumentException("Deadline must be a positive epoch time: " + deadline);
+            }
+            this.deadline = deadline;
+            return this;
+        }
+
+        public boolean hasDeadline() {
+            return deadline != 0;
+        }
+
+        /**
+         * @return The deadline in epoch milliseconds, or 0 if the task has none.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * @return True if the task has no deadline or could still complete by it if started now.
+         */
+        boolean canMeetDeadline(long now) {
+            return deadline == 0 || now + executionTime <= deadline;
+        }
+
+        long getQueueSequence() {
+            return queueSequence;
+        }
+
+        void setQueueSequence(long sequence) {
+            this.queueSequence = sequence;
+        }
+
+        void setOwner(String owner) {
+            this.owner = owner;
+        }
+
+        void copyStarted() {
+            runningCopies.incrementAndGet();
+        }
+
+        /**
+         * Counts a speculative copy as running, provided another copy still is.
+         *
+         * @return False if every copy has already ended, so the task must not be started again.
+         */
+        boolean joinRunningCopy() {
+            int copies;
+            do {
+                copies = runningCopies.get();
+                if (copies == 0) {
+                    return false;
+                }
+            } while (!runningCopies.compareAndSet(copies, copies + 1));
+            return true;
+        }
+
+        /**
+         * @return True if no other copy of the task is still running.
+         */
+        boolean copyEnded() {
+            return runningCopies.decrementAndGet() == 0;
+        }
+
+        void markPreempted() {
+            preemptions++;
+        }
+
+        public int getPreemptionCount() {
+            return preemptions;
+        }
+
+        void markWokenEarly() {
+            wokenEarly = true;
+        }
+
+        /**
+         * @return True if the task was woken early since its last failed placement; clears the flag.
+         */
+        boolean takeWokenEarly() {
+            boolean early = wokenEarly;
+            wokenEarly = false;
+            return early;
+        }
+
+        @Override
+        public String toString() {
+            return "Task{" +
+                    "id='" + id + '\'' +
+                    ", resources=" + resources +
+                    ", executionTime=" + executionTime +
+                    ", priority=" + priority +
+                    ", retryCount=" + retryCount +
+                    (owner != null ? ", owner='" + owner + '\'' : "") +
+                    '}';
+        }
+    }
+
+    /**
+     * How a task ended.
+     */
+    public enum TaskStatus {
+        /** Ran to completion on a node. */
+        COMPLETED,
+        /** Found no node within its retries; kept in the dead-letter store. */
+        DISCARDED,
+        /** Needs more than any node has; kept in the dead-letter store. */
+        REJECTED,
+        /** Not run because a task it depends on did not complete. */
+        DEPENDENCY_FAILED,
+        /** Member of a gang that could not be placed before its timeout. */
+        TIMED_OUT,
+        /** Dropped before running because it could no longer complete by its deadline. */
+        DEADLINE_MISSED,
+        /** Still running or waiting for a retry when the agent stopped. */
+        CANCELLED
+    }
+
+    /**
+     * A machine to register through {@link #registerNodes(Stream)}.
+     */
+    public static final class NodeRegistration {
+        private final String nodeId;
+        private final ResourceVector resources;
+        private final Map<String, String> labels;
+
+        public NodeRegistration(String nodeId, int capacity) {
+            this(nodeId, ResourceVector.ofCpu(capacity));
+        }
+
+        public NodeRegistration(String nodeId, ResourceVector resources) {
+            this(nodeId, resources, Collections.emptyMap());
+        }
+
+        public NodeRegistration(String nodeId, ResourceVector resources, Map<String, String> labels) {
+            this.nodeId = Objects.requireNonNull(nodeId);
+            this.resources = Objects.requireNonNull(resources);
+            this.labels = Objects.requireNonNull(labels);
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public ResourceVector getResources() {
+            return resources;
+        }
+
+        public Map<String, String> getLabels() {
+            return labels;
+        }
+    }
+
+    /**
+     * The result of a task, delivered through the future returned by enqueueTask. Times are
+     * epoch milliseconds, 0 for steps the task never reached.
+     */
+    public static final class TaskOutcome {
+        private final String taskId;
+        private final TaskStatus status;
+        private final String nodeId;
+        private final int retryCount;
+        private final long submittedAt;
+        private final long dispatchedAt;
+        private final long finishedAt;
+
+        TaskOutcome(String taskId, TaskStatus status, String nodeId, int retryCount,
+                    long submittedAt, long dispatchedAt, long finishedAt) {
+            this.taskId = taskId;
+            this.status = status;
+            this.nodeId = nodeId;
+            this.retryCount = retryCount;
+            this.submittedAt = submittedAt;
+            this.dispatchedAt = dispatchedAt;
+            this.finishedAt = finishedAt;
+        }
+
+        public String getTaskId() {
+            return taskId;
+        }
+
+        public TaskStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The node that ran the task, or null if it never ran.
+         */
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public int getRetryCount() {
+            return retryCount;
+        }
+
+        public long getSubmittedAt() {
+            return submittedAt;
+        }
+
+        public long getDispatchedAt() {
+            return dispatchedAt;
+        }
+
+        public long getFinishedAt() {
+            return finishedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "TaskOutcome{" +
+                    "taskId='" + taskId + '\'' +
+                    ", status=" + status +
+                    ", nodeId=" + (nodeId == null ? null : "'" + nodeId + "'") +
+                    ", retryCount=" + retryCount +
+                    ", queuedMillis=" + (dispatchedAt == 0 ? 0 : dispatchedAt - submittedAt) +
+                    ", totalMillis=" + (finishedAt - submittedAt) +
+                    '}';
+        }
+    }
+
+    /**
+     * One partition of the agent: the nodes whose id hashes to it, a queue of pending tasks and the
+     * signal its dispatcher thread sleeps on. Nodes are looked up by id through the agent-wide map.
+     */
+    private static final class Shard {
+        private final int id;
+        private final CapacityIndex capacityIndex;  // This shard's nodes ordered by available capacity
+        private final Queue<Task> taskQueue;        // This shard's pending tasks
+        private final DispatchSignal signal;        // Wakes the shard's dispatcher
+
+        Shard(int id, Queue<Task> taskQueue) {
+            this.id = id;
+            this.capacityIndex = new CapacityIndex();
+            this.taskQueue = taskQueue;
+            this.signal = new DispatchSignal();
+        }
+    }
+
+    /**
+     * Generation counter the dispatcher blocks on. Producers only bump the counter and take the
+     * lock when a dispatcher is actually parked, so enqueueing stays cheap while work is flowing.
+     */
+    static final class DispatchSignal {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final AtomicLong generation = new AtomicLong();
+        private volatile int waiters;
+
+        long generation() {
+            return generation.get();
+        }
+
+        void signal() {
+            generation.incrementAndGet();
+            if (waiters > 0) {
+                lock.lock();
+                try {
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Blocks until the generation moves past the given value.
+         */
+        void awaitChange(long seen) throws InterruptedException {
+            lock.lock();
+            try {
+                waiters++;
+                while (generation.get() == seen) {
+                    changed.await();
+                }
+            } finally {
+                waiters--;
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Bounds the number of pending tasks with a semaphore: a task takes a permit on admission and
+     * returns it when it leaves the queue.
+     */
+    static final class AdmissionControl {
+        private final int limit;
+        private final AdmissionPolicy policy;
+        private final long timeoutMillis;
+        private final Semaphore permits;
+
+        AdmissionControl(int limit, AdmissionPolicy policy, long timeoutMillis) {
+            if (limit < 1 || timeoutMillis < 0) {
+                throw new IllegalArgumentException("Invalid queue bound: limit " + limit + ", timeout " + timeoutMillis);
+            }
+            this.limit = limit;
+            this.policy = Objects.requireNonNull(policy);
+            this.timeoutMillis = timeoutMillis;
+            this.permits = new Semaphore(limit);
+        }
+
+        /**
+         * Takes a place for the task according to the policy.
+         *
+         * @throws RejectedExecutionException If no place was free in time, or the caller was interrupted.
+         */
+        void admit(Task task) {
+            boolean admitted;
+            try {
+                switch (policy) {
+                    case BLOCK:
+                        permits.acquire();
+                        admitted = true;
+                        break;
+                    case TIMED:
+                        admitted = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+                        break;
+                    default:
+                        admitted = permits.tryAcquire();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for queue space: " + task, e);
+            }
+            if (!admitted) {
+                throw new RejectedExecutionException("Task queue full (" + limit + " pending tasks): " + task);
+            }
+            task.admitted(this);
+        }
+
+        /**
+         * Takes a place for the task if one is free right now.
+         *
+         * @return True if the task was admitted.
+         */
+        boolean tryAdmit(Task task) {
+            if (!permits.tryAcquire()) {
+                return false;
+            }
+            task.admitted(this);
+            return true;
+        }
+
+        /**
+         * Takes a place for the task, waiting as long as it takes.
+         */
+        void admitBlocking(Task task) {
+            permits.acquireUninterruptibly();
+            task.admitted(this);
+        }
+
+        void release() {
+            permits.release();
+        }
+    }
+
+    /**
+     * What enqueueTask does with a task while a bounded queue is full.
+     */
+    public enum AdmissionPolicy {
+        /** Throw RejectedExecutionException at once. */
+        REJECT,
+        /** Wait until a place frees up. */
+        BLOCK,
+        /** Wait up to the configured timeout, then throw RejectedExecutionException. */
+        TIMED
+    }
+
+    /**
+     * A snapshot of the queue load, as read by producers before submitting.
+     */
+    public static final class Backpressure {
+        private final long queueDepth;
+        private final int queueLimit;
+        private final double dispatchRate;
+
+        Backpressure(long queueDepth, int queueLimit, double dispatchRate) {
+            this.queueDepth = queueDepth;
+            this.queueLimit = queueLimit;
+            this.dispatchRate = dispatchRate;
+        }
+
+        /**
+         * @return Tasks waiting for a node, queued or parked for a retry.
+         */
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return The queue bound, or 0 if the queue is unbounded.
+         */
+        public int getQueueLimit() {
+            return queueLimit;
+        }
+
+        /**
+         * @return Recent placements per second, exponentially weighted.
+         */
+        public double getDispatchRate() {
+            return dispatchRate;
+        }
+
+        /**
+         * @return Time to place the current backlog at the recent dispatch rate, or
+         *         {@link Long#MAX_VALUE} if there is a backlog and nothing has been placed recently.
+         */
+        public long getEstimatedDrainMillis() {
+            if (queueDepth == 0) {
+                return 0;
+            }
+            return dispatchRate <= 0 ? Long.MAX_VALUE : (long) Math.ceil(queueDepth * 1000 / dispatchRate);
+        }
+
+        /**
+         * @return True if the queue is bounded and full.
+         */
+        public boolean isSaturated() {
+            return queueLimit > 0 && queueDepth >= queueLimit;
+        }
+
+        @Override
+        public String toString() {
+            return "Backpressure{" +
+                    "queueDepth=" + queueDepth +
+                    ", queueLimit=" + queueLimit +
+                    ", dispatchRate=" + String.format("%.1f", dispatchRate) +
+                    ", estimatedDrainMillis=" + getEstimatedDrainMillis() +
+                    '}';
+        }
+    }
+
+    /**
+     * Kinds of threads a subsystem can run its work on.
+     */
+    public enum ExecutionMode {
+        /** A bounded pool of platform threads. */
+        PLATFORM,
+        /** One virtual thread per command, falling back to PLATFORM on JVMs without virtual threads. */
+        VIRTUAL
+    }
+
+    /**
+     * How queued tasks are shared between their owners.
+     */
+    public enum FairShareMode {
+        /** One queue for all owners; priority and arrival order only. */
+        NONE,
+        /** Round robin between owners, charging each task its CPU demand. */
+        WEIGHTED,
+        /** Round robin between owners, charging each task its dominant share of cluster resources. */
+        DOMINANT_RESOURCE
+    }
+
+    /**
+     * Node selection policies for single-task placement.
+     */
+    public enum PlacementMode {
+        /** Node with the smallest available CPU capacity that fits the task in every dimension. */
+        BEST_FIT,
+        /** Node on which the task takes the largest share of the free amount of its dominant resource. */
+        DOMINANT_RESOURCE,
+        /** Least loaded of two randomly sampled nodes that fit the task, for very large node pools. */
+        POWER_OF_TWO_CHOICES,
+        /** Node expected to complete the task soonest among a bounded set of candidates, judged by the runtimes observed on it. */
+        PREDICTED_COMPLETION
+    }
+
+    /**
+     * An immutable amount of CPU capacity, memory (MB) and I/O bandwidth (MB/s). The CPU dimension
+     * is the scalar capacity used throughout the rest of the agent.
+     */
+    public static final class ResourceVector {
+        public static final ResourceVector ZERO = new ResourceVector(0, 0, 0);
+
+        private final int cpu;
+        private final int memory;
+        private final int io;
+
+        public ResourceVector(int cpu, int memory, int io) {
+            if (cpu < 0 || memory < 0 || io < 0) {
+                throw new IllegalArgumentException("Resources must not be negative: cpu=" + cpu + ", memory=" + memory + ", io=" + io);
+            }
+            this.cpu = cpu;
+            this.memory = memory;
+            this.io = io;
+        }
+
+        public static ResourceVector ofCpu(int cpu) {
+            return new ResourceVector(cpu, 0, 0);
+        }
+
+        public int getCpu() {
+            return cpu;
+        }
+
+        public int getMemory() {
+            return memory;
+        }
+
+        public int getIo() {
+            return io;
+        }
+
+        /**
+         * @return True if this amount covers the demand in every dimension.
+         */
+        public boolean fits(ResourceVector demand) {
+            return cpu >= demand.cpu && memory >= demand.memory && io >= demand.io;
+        }
+
+        public ResourceVector plus(ResourceVector other) {
+            return new ResourceVector(cpu + other.cpu, memory + other.memory, io + other.io);
+        }
+
+        public ResourceVector minus(ResourceVector other) {
+            return new ResourceVector(cpu - other.cpu, memory - other.memory, io - other.io);
+        }
+
+        /**
+         * Subtracts per dimension, stopping at zero.
+         */
+        public ResourceVector minusClamped(ResourceVector other) {
+            return new ResourceVector(Math.max(0, cpu - other.cpu), Math.max(0, memory - other.memory), Math.max(0, io - other.io));
+        }
+
+        /**
+         * @return True if both amounts are non-zero in some common dimension.
+         */
+        boolean sharesAnyWith(ResourceVector other) {
+            return (cpu > 0 && other.cpu > 0) || (memory > 0 && other.memory > 0) || (io > 0 && other.io > 0);
+        }
+
+        public ResourceVector max(ResourceVector other) {
+            return new ResourceVector(Math.max(cpu, other.cpu), Math.max(memory, other.memory), Math.max(io, other.io));
+        }
+
+        /**
+         * @return True if this amount reaches the given maximum in some non-empty dimension.
+         */
+        boolean sharesMaximumWith(ResourceVector maximum) {
+            return (cpu > 0 && cpu >= maximum.cpu)
+                    || (memory > 0 && memory >= maximum.memory)
+                    || (io > 0 && io >= maximum.io);
+        }
+
+        /**
+         * Returns the largest fraction of any one dimension of this amount that the demand would take.
+         */
+        public double dominantShareOf(ResourceVector demand) {
+            return Math.max(share(demand.cpu, cpu), Math.max(share(demand.memory, memory), share(demand.io, io)));
+        }
+
+        private static double share(int demand, int available) {
+            if (demand == 0) {
+                return 0;
+            }
+            return available == 0 ? Double.POSITIVE_INFINITY : (double) demand / available;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ResourceVector)) {
+                return false;
+            }
+            ResourceVector other = (ResourceVector) o;
+            return cpu == other.cpu && memory == other.memory && io == other.io;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(cpu, memory, io);
+        }
+
+        @Override
+        public String toString() {
+            return memory == 0 && io == 0
+                    ? String.valueOf(cpu)
+                    : "{cpu=" + cpu + ", memory=" + memory + ", io=" + io + "}";
+        }
+    }
+
+    /**
+     * Bin-packing heuristics available to batch dispatch. Both sort the batch by decreasing
+     * required capacity; they differ in which node receives each task.
+     */
+    public enum PackingStrategy {
+        /** First node, in registration order, with enough room left. */
+        FIRST_FIT_DECREASING,
+        /** Node whose remaining room is the smallest that still fits. */
+        BEST_FIT_DECREASING
+    }
+
+    /**
+     * Tasks submitted through enqueueGang. The state and the planning marks are guarded by the
+     * gang's monitor, which makes placement and expiry mutually exclusive.
+     */
+    private static final class Gang {
+        private static final int WAITING = 0;
+        private static final int PLACED = 1;
+        private static final int EXPIRED = 2;
+
+        private final List<Task> members;
+        private final long timeoutMillis;
+        private int state = WAITING;
+        private volatile TimingWheel.Timeout timeout;
+        private long releasesAtPlan = -1; // Capacity releases counted when last planned, -1 if never
+        private long freedCpuAtPlan;      // CPU freed so far when last planned
+        private long cpuShortfall;        // CPU the last plan was short of
+
+        Gang(List<Task> members, long timeoutMillis) {
+            this.members = members;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * @return True if capacity was released since the last plan and at least as much CPU as the
+         *         plan was short of has been freed, so planning again could succeed.
+         */
+        synchronized boolean worthPlanning(long releases, long freed) {
+            return releases != releasesAtPlan && freed - freedCpuAtPlan >= cpuShortfall;
+        }
+    }
+
+    /**
+     * A node's capacity as seen by one packing pass, together with the tasks planned for it.
+     */
+    private static final class PackingBin {
+        private final MachineNode node;
+        private final List<Task> tasks = new ArrayList<>();
+        private final Set<String> groups = new HashSet<>(); // Spread groups of the planned tasks
+        private ResourceVector room;
+        private ResourceVector planned = ResourceVector.ZERO;
+
+        PackingBin(MachineNode node, ResourceVector room) {
+            this.node = node;
+            this.room = room;
+        }
+
+        boolean accepts(Task task) {
+            return room.fits(task.getResources()) && node.admits(task)
+                    && (task.getSpreadGroup() == null || !groups.contains(task.getSpreadGroup()));
+        }
+
+        void assign(Task task) {
+            tasks.add(task);
+            if (task.getSpreadGroup() != null) {
+                groups.add(task.getSpreadGroup());
+            }
+            room = room.minus(task.getResources());
+            planned = planned.plus(task.getResources());
+        }
+
+        long key() {
+            return ((long) room.getCpu() << 32) | (node.getOrdinal() & 0xFFFFFFFFL);
         }
     }
 